@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+// Where block types come from when tracing
+interface BlockSource {
+
+    // Type ID of the block at the given coordinates, or -1 if unknown (e.g.
+    // the chunk isn't available). y is within 0 to getMaxHeight() - 1.
+    public int getTypeId(int x, int y, int z);
+
+    public int getMaxHeight();
+
+    // True if the 16-block-high section containing the given column is
+    // known to be all air. False if it isn't, or it can't tell.
+    public boolean isSectionEmpty(int x, int sectionY, int z);
+
+    // Y-coordinate just above the highest block in the column that blocks
+    // light, or -1 if unknown
+    public int getHeightmapY(int x, int z);
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+// Finds the %Y block in a single column of blocks. Reads type IDs straight
+// from a BlockSource, skipping sections it knows are all air and using the
+// heightmap where it can.
+final class ColumnScan {
+
+    private static final int SECTION_SHIFT = 4; // 16 blocks
+
+    private ColumnScan() {
+        throw new AssertionError(); // Don't instantiate me!
+    }
+
+    // Returns the Y-coordinate of the air block above (x, y, z) according to
+    // the given mode, or -1 if it can't be determined. Anything at or above
+    // the world's max height counts as air.
+    static int findAirY(BlockSource blockSource, int x, int y, int z, YAirMode mode) {
+        switch (mode) {
+        case FIRST_AIR:
+            return findAir(blockSource, x, y, z, 1);
+        case TWO_HIGH:
+            return findAir(blockSource, x, y, z, 2);
+        case SURFACE:
+            return blockSource.getHeightmapY(x, z);
+        default:
+            throw new AssertionError("Unknown mode: " + mode);
+        }
+    }
+
+    // First y at or above startY with height air blocks in a row
+    private static int findAir(BlockSource blockSource, int x, int startY, int z, int height) {
+        int maxHeight = blockSource.getMaxHeight();
+        int run = 0;
+        for (int y = startY; y < maxHeight; y++) {
+            // Whole section is air, so the rest of the run is here (or past
+            // the top of the world)
+            if (blockSource.isSectionEmpty(x, y >> SECTION_SHIFT, z)) {
+                int sectionTop = ((y >> SECTION_SHIFT) + 1) << SECTION_SHIFT;
+                int end = y + height - run;
+                if (end <= sectionTop || sectionTop >= maxHeight)
+                    return end - height;
+                // Continue past this section
+                run += sectionTop - y;
+                y = sectionTop - 1;
+                continue;
+            }
+
+            int typeId = blockSource.getTypeId(x, y, z);
+            if (typeId < 0)
+                return -1; // Unknown
+            if (typeId == 0) {
+                if (++run == height)
+                    return y - height + 1;
+            }
+            else
+                run = 0;
+        }
+        return maxHeight - run;
+    }
+
+}
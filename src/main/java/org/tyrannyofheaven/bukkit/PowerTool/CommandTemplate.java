@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A bound command split into literal text and token slots. Compiled once
+// when the command is bound or loaded, so executing it is a single pass
+// with no searching.
+public final class CommandTemplate {
+
+    private static final String[] NO_LITERALS = new String[0];
+
+    private static final TokenProvider[] NO_TOKENS = new TokenProvider[0];
+
+    private final String command;
+
+    // One more literal than there are tokens. A token goes between each
+    // pair of literals.
+    private final String[] literals;
+
+    private final TokenProvider[] tokens;
+
+    private final boolean playerToken;
+
+    private final boolean locationToken;
+
+    private final boolean airToken;
+
+    private final boolean detachable;
+
+    private CommandTemplate(String command, String[] literals, TokenProvider[] tokens) {
+        this.command = command;
+        this.literals = literals;
+        this.tokens = tokens;
+
+        boolean playerToken = false;
+        boolean locationToken = false;
+        boolean airToken = false;
+        boolean detachable = true;
+        for (TokenProvider token : tokens) {
+            if (token.getTarget() == TokenProvider.TokenTarget.PLAYER)
+                playerToken = true;
+            else if (token.getTarget() == TokenProvider.TokenTarget.BLOCK)
+                locationToken = true;
+            if (token instanceof StandardToken && ((StandardToken)token).getType() == StandardToken.Type.Y_AIR)
+                airToken = true;
+            if (!(token instanceof StandardToken) ||
+                    (token.getTarget() != TokenProvider.TokenTarget.NONE && token.getTarget() != TokenProvider.TokenTarget.BLOCK))
+                detachable = false;
+        }
+        this.playerToken = playerToken;
+        this.locationToken = locationToken;
+        this.airToken = airToken;
+        this.detachable = detachable;
+    }
+
+    // Splits the command on the tokens in the given settings. Where tokens
+    // overlap, the longest one wins.
+    public static CommandTemplate compile(String command, PowerToolSettings settings) {
+        List<TokenProvider> providers = settings.getTokenProviders();
+
+        List<String> literals = new ArrayList<String>();
+        List<TokenProvider> tokens = new ArrayList<TokenProvider>();
+        int start = 0;
+        int i = 0;
+        while (i < command.length()) {
+            TokenProvider match = null;
+            int matchLength = 0;
+            for (TokenProvider provider : providers) {
+                String token = provider.getToken();
+                if (token.length() > matchLength && command.startsWith(token, i)) {
+                    match = provider;
+                    matchLength = token.length();
+                }
+            }
+            if (match != null) {
+                literals.add(command.substring(start, i));
+                tokens.add(match);
+                i += matchLength;
+                start = i;
+            }
+            else
+                i++;
+        }
+        literals.add(command.substring(start));
+
+        return new CommandTemplate(command, literals.toArray(NO_LITERALS), tokens.toArray(NO_TOKENS));
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public boolean hasTokens() {
+        return tokens.length > 0;
+    }
+
+    public boolean hasPlayerToken() {
+        return playerToken;
+    }
+
+    public boolean hasLocationToken() {
+        return locationToken;
+    }
+
+    public boolean hasAirToken() {
+        return airToken;
+    }
+
+    // True if every token is a standard one that only needs the target
+    // location (or nothing at all), so the command can be rendered from a
+    // detached TokenContext
+    public boolean isDetachable() {
+        return detachable;
+    }
+
+    // Fills in the tokens, asking the context only for the ones this
+    // command uses. Returns null if any token has no value. sb is scratch
+    // space and is cleared first.
+    public String render(StringBuilder sb, TokenContext context) {
+        if (tokens.length == 0)
+            return command;
+
+        // So a single trace finds both kinds of target if needed
+        context.expectTargets(playerToken, locationToken);
+
+        sb.setLength(0);
+        sb.append(literals[0]);
+        for (int i = 0; i < tokens.length; i++) {
+            String value = context.getValue(tokens[i]);
+            if (value == null)
+                return null;
+            sb.append(value);
+            sb.append(literals[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return getCommand();
+    }
+
+}
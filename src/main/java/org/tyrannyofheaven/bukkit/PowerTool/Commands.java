@@ -40,6 +40,10 @@ public class Commands {
                 .forCommand("off")
                 .forCommand("toggle")
                 .forCommand("reload")
+                .forCommand("stats")
+                .forCommand("migrate")
+                .forCommand("export")
+                .forCommand("import")
                 .show();
             return null;
         }
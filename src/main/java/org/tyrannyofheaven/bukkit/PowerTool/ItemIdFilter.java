@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.Collection;
+
+// Reference counts of item IDs that have at least one power tool bound,
+// global or per-player. Lets listeners rule out items that can't possibly
+// be power tools without building an ItemKey. Main thread only.
+class ItemIdFilter {
+
+    private static final int INITIAL_SIZE = 512;
+
+    private int[] counts = new int[INITIAL_SIZE];
+
+    private int distinct;
+
+    void add(int itemId) {
+        if (itemId < 0) return;
+        if (itemId >= counts.length) {
+            int[] newCounts = new int[Math.max(counts.length * 2, itemId + 1)];
+            System.arraycopy(counts, 0, newCounts, 0, counts.length);
+            counts = newCounts;
+        }
+        if (counts[itemId]++ == 0)
+            distinct++;
+    }
+
+    void remove(int itemId) {
+        if (itemId < 0 || itemId >= counts.length || counts[itemId] == 0) return;
+        if (--counts[itemId] == 0)
+            distinct--;
+    }
+
+    void addAll(Collection<ItemKey> keys) {
+        for (ItemKey key : keys) {
+            add(key.getItemId());
+        }
+    }
+
+    void removeAll(Collection<ItemKey> keys) {
+        for (ItemKey key : keys) {
+            remove(key.getItemId());
+        }
+    }
+
+    boolean contains(int itemId) {
+        return itemId >= 0 && itemId < counts.length && counts[itemId] > 0;
+    }
+
+    // Number of distinct item IDs with power tools
+    int size() {
+        return distinct;
+    }
+
+}
@@ -39,8 +39,16 @@ public class ItemKey implements java.io.Serializable, java.lang.Comparable<ItemK
 
     private final String displayName;
 
+    // Derived from the above, so recomputed on deserialization
+    private final transient boolean dataRelevant;
+
+    private final transient int hash;
+
     private static final Map<Integer, ItemDataParser> itemDataParsers;
 
+    // Indexed by item ID, true if the item has a data parser
+    private static final boolean[] dataItems;
+
     static {
         Map<Integer, ItemDataParser> idps = new HashMap<Integer, ItemDataParser>();
         ItemDataParser idp;
@@ -67,12 +75,64 @@ public class ItemKey implements java.io.Serializable, java.lang.Comparable<ItemK
 //      Material.MONSTER_EGG,
 
         itemDataParsers = Collections.unmodifiableMap(idps);
+
+        int maxId = 0;
+        for (Integer itemId : idps.keySet()) {
+            maxId = Math.max(maxId, itemId);
+        }
+        dataItems = new boolean[maxId + 1];
+        for (Integer itemId : idps.keySet()) {
+            dataItems[itemId] = true;
+        }
     }
 
+    private static final int SHARED_IDS = 4096;
+
+    private static final int SHARED_DATA = 16;
+
+    // Shared instances of unnamed keys, indexed by item ID then data. Filled
+    // in lazily; races just mean the occasional duplicate, which is harmless
+    // since instances are immutable.
+    private static final ItemKey[][] sharedKeys = new ItemKey[SHARED_IDS][];
+
     private ItemKey(int itemId, byte data, String displayName) {
         this.itemId = itemId;
-        this.data = data;
+        this.dataRelevant = hasData(itemId);
+        // Data is meaningless for everything else, so don't let it matter
+        this.data = dataRelevant ? data : 0;
         this.displayName = displayName;
+
+        int result = 17;
+        result = 37 * result + itemId;
+        result = 37 * result + this.data;
+        result = 37 * result + (displayName == null ? 0 : displayName.hashCode());
+        hash = result;
+    }
+
+    private static ItemKey create(int itemId, byte data, String displayName) {
+        if (displayName != null || itemId < 0 || itemId >= SHARED_IDS)
+            return new ItemKey(itemId, data, displayName);
+
+        boolean dataRelevant = hasData(itemId);
+        int index = dataRelevant ? data : 0;
+        if (index < 0 || index >= SHARED_DATA)
+            return new ItemKey(itemId, data, null);
+
+        ItemKey[] keys = sharedKeys[itemId];
+        if (keys == null) {
+            keys = new ItemKey[dataRelevant ? SHARED_DATA : 1];
+            sharedKeys[itemId] = keys;
+        }
+        ItemKey key = keys[index];
+        if (key == null) {
+            key = new ItemKey(itemId, data, null);
+            keys[index] = key;
+        }
+        return key;
+    }
+
+    private Object readResolve() {
+        return create(itemId, data, displayName);
     }
 
     public int getItemId() {
@@ -83,8 +143,13 @@ public class ItemKey implements java.io.Serializable, java.lang.Comparable<ItemK
         return data;
     }
 
-    private boolean hasData() {
-        return itemDataParsers.containsKey(getItemId());
+    public boolean hasData() {
+        return dataRelevant;
+    }
+
+    // Whether the data value distinguishes items with the given ID
+    public static boolean hasData(int itemId) {
+        return itemId >= 0 && itemId < dataItems.length && dataItems[itemId];
     }
 
     public String getDisplayName() {
@@ -93,10 +158,18 @@ public class ItemKey implements java.io.Serializable, java.lang.Comparable<ItemK
 
     public static ItemKey fromItemStack(ItemStack itemStack, boolean useDisplayNames) {
         String displayName = null;
-        ItemMeta itemMeta = itemStack.getItemMeta();
-        if (useDisplayNames && itemMeta != null && itemMeta.hasDisplayName())
-            displayName = itemMeta.getDisplayName();
-        return new ItemKey(itemStack.getTypeId(), itemStack.getData().getData(), displayName);
+        // getItemMeta() returns a copy, so only ask when there's something
+        // to copy
+        if (useDisplayNames && itemStack.hasItemMeta()) {
+            ItemMeta itemMeta = itemStack.getItemMeta();
+            if (itemMeta.hasDisplayName())
+                displayName = itemMeta.getDisplayName();
+        }
+        return create(itemStack.getTypeId(), (byte)itemStack.getDurability(), displayName);
+    }
+
+    public static ItemKey valueOf(int itemId, byte data, String displayName) {
+        return create(itemId, data, displayName);
     }
 
     public static ItemKey fromString(String str, boolean useDisplayNames) {
@@ -117,18 +190,16 @@ public class ItemKey implements java.io.Serializable, java.lang.Comparable<ItemK
             }
         }
         if (data == null)
-            return new ItemKey(material.getId(), (byte)0, displayName);
+            return create(material.getId(), (byte)0, displayName);
         else
-            return new ItemKey(material.getId(), data, displayName);
+            return create(material.getId(), data, displayName);
     }
 
     @Override
     public int compareTo(ItemKey o) {
         int diff = getItemId() - o.getItemId();
         if (diff != 0) return diff;
-        if (hasData()) {
-            diff = getData() - o.getData();
-        }
+        diff = getData() - o.getData(); // 0 unless data is relevant
         if (diff != 0) return diff;
         
         if (getDisplayName() == null) {
@@ -150,18 +221,15 @@ public class ItemKey implements java.io.Serializable, java.lang.Comparable<ItemK
         if (obj == this) return true;
         if (!(obj instanceof ItemKey)) return false;
         ItemKey o = (ItemKey)obj;
-        return o.getItemId() == getItemId() &&
-                (hasData() ? o.getData() == getData() : true) &&
+        return o.hash == hash &&
+                o.getItemId() == getItemId() &&
+                o.getData() == getData() &&
                 (getDisplayName() == null ? o.getDisplayName() == null : getDisplayName().equals(o.getDisplayName()));
     }
 
     @Override
     public int hashCode() {
-        int result = 17;
-        result = 37 * result + getItemId();
-        result = 37 * result + (hasData() ? (int)getData() : 0);
-        result = 37 * result + (getDisplayName() == null ? 0 : getDisplayName().hashCode());
-        return result;
+        return hash;
     }
     
     @Override
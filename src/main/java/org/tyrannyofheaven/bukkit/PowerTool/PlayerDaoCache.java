@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolDao;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+
+// Bounded cache of per-player DAOs, so consecutive edits reuse the
+// already-parsed document rather than re-reading the file each time.
+class PlayerDaoCache {
+
+    private final Cache<String, PowerToolDao> cache;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    PlayerDaoCache(final PowerToolPlugin plugin, int maxSize, int idleMinutes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(idleMinutes, TimeUnit.MINUTES)
+                .build(new CacheLoader<String, PowerToolDao>() {
+                    @Override
+                    public PowerToolDao load(String key) throws Exception {
+                        misses.incrementAndGet();
+                        return plugin.createPlayerDao(key);
+                    }
+                });
+    }
+
+    PowerToolDao get(String playerName) {
+        requests.incrementAndGet();
+        return cache.getUnchecked(playerName);
+    }
+
+    void invalidate(String playerName) {
+        cache.invalidate(playerName);
+    }
+
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    long getHits() {
+        return requests.get() - misses.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+}
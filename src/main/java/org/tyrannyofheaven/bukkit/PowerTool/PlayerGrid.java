@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Player;
+
+// Online players bucketed by the 16x16 columns their hitboxes overlap, one
+// grid per world, so crosshair targeting only looks at players in the
+// columns along the line of sight. Kept up-to-date from movement events.
+// Main thread only.
+class PlayerGrid {
+
+    static final int CELL_SHIFT = 4; // 16 blocks
+
+    // Player hitboxes are treated as 1x2x1
+    private static final double HALF_WIDTH = 0.5;
+
+    private static final double HEIGHT = 2.0;
+
+    private final Map<String, Map<Long, List<Player>>> worlds = new HashMap<String, Map<Long, List<Player>>>();
+
+    private final Map<UUID, Entry> entries = new HashMap<UUID, Entry>();
+
+    // Records the player at the given location. Cheap if they haven't
+    // crossed into different cells.
+    void update(Player player, Location location) {
+        String worldName = location.getWorld().getName();
+        int minCx = cell(location.getX() - HALF_WIDTH);
+        int maxCx = cell(location.getX() + HALF_WIDTH);
+        int minCz = cell(location.getZ() - HALF_WIDTH);
+        int maxCz = cell(location.getZ() + HALF_WIDTH);
+
+        Entry entry = entries.get(player.getUniqueId());
+        if (entry != null) {
+            if (entry.worldName.equals(worldName) &&
+                    entry.minCx == minCx && entry.maxCx == maxCx &&
+                    entry.minCz == minCz && entry.maxCz == maxCz)
+                return; // Still in the same cells
+            removeCells(player, entry);
+        }
+        else {
+            entry = new Entry();
+            entries.put(player.getUniqueId(), entry);
+        }
+
+        entry.worldName = worldName;
+        entry.minCx = minCx;
+        entry.maxCx = maxCx;
+        entry.minCz = minCz;
+        entry.maxCz = maxCz;
+
+        Map<Long, List<Player>> cells = worlds.get(worldName);
+        if (cells == null) {
+            cells = new HashMap<Long, List<Player>>();
+            worlds.put(worldName, cells);
+        }
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cz = minCz; cz <= maxCz; cz++) {
+                Long key = key(cx, cz);
+                List<Player> players = cells.get(key);
+                if (players == null) {
+                    players = new ArrayList<Player>(2);
+                    cells.put(key, players);
+                }
+                players.add(player);
+            }
+        }
+    }
+
+    void remove(Player player) {
+        Entry entry = entries.remove(player.getUniqueId());
+        if (entry != null)
+            removeCells(player, entry);
+    }
+
+    void clear() {
+        worlds.clear();
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void removeCells(Player player, Entry entry) {
+        Map<Long, List<Player>> cells = worlds.get(entry.worldName);
+        if (cells == null) return;
+        for (int cx = entry.minCx; cx <= entry.maxCx; cx++) {
+            for (int cz = entry.minCz; cz <= entry.maxCz; cz++) {
+                Long key = key(cx, cz);
+                List<Player> players = cells.get(key);
+                if (players != null) {
+                    players.remove(player);
+                    if (players.isEmpty())
+                        cells.remove(key);
+                }
+            }
+        }
+        if (cells.isEmpty())
+            worlds.remove(entry.worldName);
+    }
+
+    // Players whose hitboxes overlap the given cell, or null if there are
+    // none. Cell coordinates are block coordinates >> CELL_SHIFT.
+    List<Player> getPlayers(String worldName, int cx, int cz) {
+        Map<Long, List<Player>> cells = worlds.get(worldName);
+        return cells == null ? null : cells.get(key(cx, cz));
+    }
+
+    // Distance along the ray to the player's hitbox, or -1 if it misses.
+    // scratch receives the player's location.
+    static double intersect(Player player, Location scratch, double ox, double oy, double oz, double dx, double dy, double dz) {
+        Location loc = player.getLocation(scratch);
+        return Utils.rayBoxIntersect(ox, oy, oz, dx, dy, dz,
+                loc.getX() - HALF_WIDTH, loc.getY(), loc.getZ() - HALF_WIDTH,
+                loc.getX() + HALF_WIDTH, loc.getY() + HEIGHT, loc.getZ() + HALF_WIDTH);
+    }
+
+    private static int cell(double coord) {
+        return (int)Math.floor(coord) >> CELL_SHIFT;
+    }
+
+    private static Long key(int cx, int cz) {
+        return ((long)cx << 32) | (cz & 0xffffffffL);
+    }
+
+    private static class Entry {
+
+        private String worldName;
+
+        private int minCx;
+
+        private int maxCx;
+
+        private int minCz;
+
+        private int maxCz;
+
+    }
+
+}
@@ -39,12 +39,12 @@ public class PowerTool {
         return commandMap.get(action);
     }
 
-    public void setCommand(PowerToolAction action, String command, boolean hasPlayerToken, boolean hasLocationToken, boolean hasAirToken) {
+    public void setCommand(PowerToolAction action, CommandTemplate template) {
         if (action == null)
             throw new IllegalArgumentException("action cannot be null");
-        if (!ToHStringUtils.hasText(command))
+        if (template == null || !ToHStringUtils.hasText(template.getCommand()))
             throw new IllegalArgumentException("command must have a value");
-        commandMap.put(action, new Command(command, hasPlayerToken, hasLocationToken, hasAirToken));
+        commandMap.put(action, new Command(template));
     }
 
     public void clearCommand(PowerToolAction action) {
@@ -57,6 +57,16 @@ public class PowerTool {
         return commandMap.isEmpty();
     }
 
+    // Commands are immutable, so a shallow copy is enough
+    public PowerTool copy() {
+        PowerTool pt = new PowerTool();
+        pt.commandMap.putAll(commandMap);
+        pt.global = global;
+        pt.runAsConsole = runAsConsole;
+        pt.permissions = permissions;
+        return pt;
+    }
+
     public boolean isGlobal() {
         return global;
     }
@@ -101,35 +111,30 @@ public class PowerTool {
 
     public static class Command {
         
-        private final boolean playerToken;
+        private final CommandTemplate template;
         
-        private final boolean locationToken;
-        
-        private final boolean airToken;
-
-        private final String command;
-        
-        private Command(String command, boolean playerToken, boolean locationToken, boolean airToken) {
-            this.playerToken = playerToken;
-            this.command = command;
-            this.locationToken = locationToken;
-            this.airToken = airToken;
+        private Command(CommandTemplate template) {
+            this.template = template;
         }
 
         public boolean hasPlayerToken() {
-            return playerToken;
+            return template.hasPlayerToken();
         }
 
         public boolean hasLocationToken() {
-            return locationToken;
+            return template.hasLocationToken();
         }
         
         public boolean hasAirToken() {
-            return airToken;
+            return template.hasAirToken();
         }
 
         public String getCommand() {
-            return command;
+            return template.getCommand();
+        }
+
+        public CommandTemplate getTemplate() {
+            return template;
         }
         
         @Override
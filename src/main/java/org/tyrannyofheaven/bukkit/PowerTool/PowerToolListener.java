@@ -27,7 +27,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
@@ -36,12 +35,22 @@ import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.inventory.InventoryClickEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerDropItemEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerItemBreakEvent;
 import org.bukkit.event.player.PlayerItemHeldEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerPickupItemEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.vehicle.VehicleMoveEvent;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.util.Vector;
 import org.tyrannyofheaven.bukkit.util.permissions.PermissionUtils;
 
 import com.google.common.cache.Cache;
@@ -87,21 +96,32 @@ public class PowerToolListener implements Listener {
     }
 
     private boolean canUsePowerTool(Player player, ItemStack item) {
-        List<String> permissions = materialPermissionCache.getUnchecked(item.getType());
-        return PermissionUtils.hasOnePermission(player, true, permissions.toArray(new String[permissions.size()]));
+        Material material = item.getType();
+        Boolean allowed = plugin.getPermissionDecision(player, material);
+        if (allowed == null) {
+            List<String> permissions = materialPermissionCache.getUnchecked(material);
+            allowed = PermissionUtils.hasOnePermission(player, true, permissions.toArray(new String[permissions.size()]));
+            plugin.setPermissionDecision(player, material, allowed);
+        }
+        return allowed;
     }
 
     @EventHandler(priority=EventPriority.NORMAL)
     public void onPlayerInteract(PlayerInteractEvent event) {
-        if (!plugin.getEnabled(event.getPlayer())) return;
-
         // NB: Don't care if it's canceled or not.
         // Interaction will be canceled if it doesn't hit a block, which is
         // something we care about.
 
         if (!event.hasItem()) return; // no bare fists (for now...)
 
-        PowerTool pt = plugin.getPowerTool(event.getPlayer(), event.getItem(), false);
+        if (!plugin.isPossiblePowerTool(event.getPlayer(), event.getItem())) return;
+
+        if (!plugin.getEnabled(event.getPlayer())) return;
+
+        // Use the same settings and global power tools throughout
+        PowerToolSnapshot snapshot = plugin.getSnapshot();
+
+        PowerTool pt = plugin.getPowerTool(snapshot, event.getPlayer(), event.getItem(), event.getPlayer().getInventory().getHeldItemSlot(), false);
         if (pt != null) {
             if (!canUsePowerTool(event.getPlayer(), event.getItem())) return;
 
@@ -111,23 +131,17 @@ public class PowerToolListener implements Listener {
                 if (command != null) {
                     debug(plugin, "Power tool candidate: %s", command);
                     if (plugin.shouldExecute(event.getPlayer())) {
-                        String commandString = command.getCommand();
-                        if (command.hasPlayerToken()) {
-                            Player targetedPlayer = findPlayerInSight(event.getPlayer());
-                            if (targetedPlayer != null) {
-                                debug(plugin, "%s %sed %s", event.getPlayer().getName(), action.getDisplayName(), targetedPlayer.getName());
-                                commandString = commandString.replace(plugin.getPlayerToken(), targetedPlayer.getName());
-                            }
-                            else {
-                                debug(plugin, "No player target");
-                                commandString = null;
-                            }
-                        }
-                        else if (command.hasLocationToken()) {
-                            commandString = plugin.substituteLocation(event.getPlayer(), event.getClickedBlock(), commandString, command.hasAirToken());
+                        if (event.getClickedBlock() == null && plugin.isAsyncTraceable(snapshot, pt, command.getTemplate())) {
+                            // Runs a tick later
+                            plugin.executeAsync(event.getPlayer(), event.getItem(), command.getTemplate(), pt.getPermissions());
                         }
-                        if (commandString != null) {
-                            plugin.execute(event.getPlayer(), commandString, pt.isRunAsConsole(), pt.getPermissions());
+                        else {
+                            // Targets are only looked up if the command needs them
+                            TokenContext context = new TokenContext(plugin, event.getPlayer(), event.getItem(), event.getClickedBlock(), null);
+                            String commandString = plugin.renderCommand(command.getTemplate(), context);
+                            if (commandString != null) {
+                                plugin.execute(event.getPlayer(), commandString, pt.isRunAsConsole(), pt.getPermissions());
+                            }
                         }
                     }
                     else {
@@ -144,40 +158,33 @@ public class PowerToolListener implements Listener {
         if (event.getDamager() instanceof Player) {
             Player attacker = (Player)event.getDamager();
 
-            if (!plugin.getEnabled(attacker)) return;
+            ItemStack item = attacker.getItemInHand();
+            if (item.getTypeId() == Material.AIR.getId()) return;
 
-            int itemId = attacker.getItemInHand().getTypeId();
+            if (!plugin.isPossiblePowerTool(attacker, item)) return;
+
+            if (!plugin.getEnabled(attacker)) return;
 
-            if (itemId == Material.AIR.getId()) return;
+            PowerToolSnapshot snapshot = plugin.getSnapshot();
 
-            PowerTool pt = plugin.getPowerTool(attacker, attacker.getItemInHand(), false);
+            PowerTool pt = plugin.getPowerTool(snapshot, attacker, item, attacker.getInventory().getHeldItemSlot(), false);
             if (pt != null) {
-                if (!canUsePowerTool(attacker, attacker.getItemInHand())) return;
+                if (!canUsePowerTool(attacker, item)) return;
 
                 PowerTool.Command command = pt.getCommand(PowerToolAction.LEFT_CLICK);
                 if (command != null) {
                     debug(plugin, "Power tool candidate*: %s", command);
                     if (plugin.shouldExecute(attacker)) {
-                        String commandString = null;
-
-                        if (command.hasPlayerToken()) {
-                            // Player target required
-                            if (event.getEntity() instanceof Player) {
-                                Player victim = (Player)event.getEntity();
-                                debug(plugin, "%s left-clicked* %s", attacker.getName(), victim.getName());
-
-                                commandString = command.getCommand().replace(plugin.getPlayerToken(), victim.getName());
-                            }
+                        if (plugin.isAsyncTraceable(snapshot, pt, command.getTemplate())) {
+                            // Runs a tick later
+                            plugin.executeAsync(attacker, item, command.getTemplate(), pt.getPermissions());
                         }
                         else {
-                            // A left-click is a left-click
-                            commandString = command.getCommand();
-                        }
-
-                        if (commandString != null) {
-                            if (command.hasLocationToken()) {
-                                commandString = plugin.substituteLocation(attacker, null, commandString, command.hasAirToken());
-                            }
+                            // A left-click is a left-click. The player token (if
+                            // any) requires that a player was hit, while location
+                            // tokens still trace the crosshairs.
+                            TokenContext context = new TokenContext(plugin, attacker, item, null, event.getEntity());
+                            String commandString = plugin.renderCommand(command.getTemplate(), context);
                             if (commandString != null) {
                                 plugin.execute(attacker, commandString, pt.isRunAsConsole(), pt.getPermissions());
                             }
@@ -192,21 +199,63 @@ public class PowerToolListener implements Listener {
         }
     }
 
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED) return;
+
+        plugin.preloadPersistentPowerTools(event.getName());
+    }
+
     @EventHandler(priority=EventPriority.MONITOR)
     public void onPlayerJoin(PlayerJoinEvent event) {
         plugin.loadPersistentPowerTools(event.getPlayer());
+        plugin.getGroupOption(event.getPlayer()); // So binding doesn't have to
+        plugin.getPlayerGrid().update(event.getPlayer(), event.getPlayer().getLocation());
     }
 
     @EventHandler(priority=EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
         plugin.forgetPlayer(event.getPlayer());
+        plugin.getPlayerGrid().remove(event.getPlayer());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        // Permissions may be per-world
+        plugin.invalidatePermissionDecisions(event.getPlayer());
+        plugin.getPlayerGrid().update(event.getPlayer(), event.getPlayer().getLocation());
+    }
+
+    // Keep the player grid up-to-date. Cheap unless the player crosses into
+    // a different cell.
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        plugin.getPlayerGrid().update(event.getPlayer(), event.getTo());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR, ignoreCancelled=true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        plugin.getPlayerGrid().update(event.getPlayer(), event.getTo());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        plugin.getPlayerGrid().update(event.getPlayer(), event.getRespawnLocation());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onVehicleMove(VehicleMoveEvent event) {
+        Entity passenger = event.getVehicle().getPassenger();
+        if (passenger instanceof Player)
+            plugin.getPlayerGrid().update((Player)passenger, event.getTo());
     }
 
     @EventHandler(priority=EventPriority.MONITOR)
     public void onItemHeldChange(PlayerItemHeldEvent event) {
-        if (!plugin.isVerbose()) return;
+        plugin.invalidateHeldItem(event.getPlayer());
 
-        if (!plugin.getEnabled(event.getPlayer())) return;
+        PowerToolSnapshot snapshot = plugin.getSnapshot();
+        if (!snapshot.getSettings().isVerbose()) return;
 
         ItemStack itemStack = event.getPlayer().getInventory().getItem(event.getNewSlot());
         if (itemStack == null) return;
@@ -215,7 +264,11 @@ public class PowerToolListener implements Listener {
         
         if (itemId == Material.AIR.getId()) return;
 
-        PowerTool pt = plugin.getPowerTool(event.getPlayer(), itemStack, false);
+        if (!plugin.isPossiblePowerTool(event.getPlayer(), itemStack)) return;
+
+        if (!plugin.getEnabled(event.getPlayer())) return;
+
+        PowerTool pt = plugin.getPowerTool(snapshot, event.getPlayer(), itemStack, event.getNewSlot(), false);
         if (pt != null) {
             if (!canUsePowerTool(event.getPlayer(), itemStack)) return;
 
@@ -235,39 +288,34 @@ public class PowerToolListener implements Listener {
         }
     }
 
-    // Determines closest player in-line with crosshairs.
-    // Uses ray-AABB intersection test.
-    private Player findPlayerInSight(Player player) {
-        Location eyeLocation = player.getEyeLocation();
-        Vector origin = eyeLocation.toVector();
-        Vector direction = eyeLocation.getDirection().multiply(PowerToolPlugin.MAX_TRACE_DISTANCE);
-        
-        Player closest = null;
-        double closestDistance = Double.MAX_VALUE;
-
-        // FIXME I feel like this call can be improved by limiting the bounding box...
-        for (Entity e : player.getNearbyEntities(PowerToolPlugin.MAX_TRACE_DISTANCE, PowerToolPlugin.MAX_TRACE_DISTANCE, PowerToolPlugin.MAX_TRACE_DISTANCE)) {
-            if (!(e instanceof Player)) continue; // Only care about Players
-
-            Player other = (Player)e;
-            Location otherLoc = other.getLocation();
-
-            // Determine bounds of 1x2x1 AABB
-            Vector minB = new Vector(otherLoc.getX() - 0.5, otherLoc.getY(), otherLoc.getZ() - 0.5);
-            Vector maxB = new Vector(otherLoc.getX() + 0.5, otherLoc.getY() + 2.0, otherLoc.getZ() + 0.5);
-
-            if (Utils.hitBoundingBox(minB, maxB, origin, direction, null)) {
-                // Player is within crosshairs
-                // If they're closer than the current closest, remember them
-                double distanceSquared = origin.distanceSquared(otherLoc.toVector());
-                if (distanceSquared < closestDistance) {
-                    closest = other;
-                    closestDistance = distanceSquared;
-                }
-            }
-        }
-        
-        return closest;
+    // The following may change the held item in place (e.g. renaming it),
+    // so forget any ItemKey resolved for it
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onInventoryClick(InventoryClickEvent event) {
+        if (event.getWhoClicked() instanceof Player)
+            plugin.invalidateHeldItem((Player)event.getWhoClicked());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onInventoryClose(InventoryCloseEvent event) {
+        if (event.getPlayer() instanceof Player)
+            plugin.invalidateHeldItem((Player)event.getPlayer());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerDropItem(PlayerDropItemEvent event) {
+        plugin.invalidateHeldItem(event.getPlayer());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerPickupItem(PlayerPickupItemEvent event) {
+        plugin.invalidateHeldItem(event.getPlayer());
+    }
+
+    @EventHandler(priority=EventPriority.MONITOR)
+    public void onPlayerItemBreak(PlayerItemBreakEvent event) {
+        plugin.invalidateHeldItem(event.getPlayer());
     }
 
 }
@@ -19,92 +19,123 @@ import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
 import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.warn;
-import static org.tyrannyofheaven.bukkit.util.ToHStringUtils.hasText;
+import static org.tyrannyofheaven.bukkit.util.ToHMessageUtils.colorize;
+import static org.tyrannyofheaven.bukkit.util.ToHMessageUtils.sendMessage;
 
 import java.io.File;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
 import org.bukkit.command.CommandException;
 import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.metadata.FixedMetadataValue;
-import org.bukkit.metadata.MetadataValue;
 import org.bukkit.permissions.Permissible;
 import org.bukkit.permissions.PermissionAttachment;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.util.BlockIterator;
+import org.bukkit.util.Vector;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.BinaryPowerToolStore;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.DaoException;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.JournalPowerToolStore;
 import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolDao;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolStore;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.SqlitePowerToolStore;
 import org.tyrannyofheaven.bukkit.PowerTool.dao.YamlPowerToolDao;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.YamlPowerToolStore;
 import org.tyrannyofheaven.bukkit.util.ToHFileUtils;
 import org.tyrannyofheaven.bukkit.util.ToHUtils;
 import org.tyrannyofheaven.bukkit.util.VersionInfo;
 import org.tyrannyofheaven.bukkit.util.command.ToHCommandExecutor;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 public class PowerToolPlugin extends JavaPlugin {
 
-    private static final String PLAYER_METADATA_KEY = "PowerTool.PlayerState";
+    private static final List<String> STORAGE_TYPES = Arrays.asList("yaml", "binary", "sqlite", "journal");
 
-    private static final String DEFAULT_PLAYER_TOKEN = "%p";
+    public static final int MAX_TRACE_DISTANCE = 100;
 
-    private static final String DEFAULT_X_TOKEN = "%x";
-    
-    private static final String DEFAULT_Y_TOKEN = "%y";
-    
-    private static final String DEFAULT_Z_TOKEN = "%z";
-    
-    private static final String DEFAULT_Y_AIR_TOKEN = "%Y";
+    // How long a held item's ItemKey is trusted without an inventory event,
+    // in milliseconds. Bounds how long a rename done behind our back (e.g.
+    // by another plugin) goes unnoticed.
+    private static final long HELD_ITEM_KEY_TTL = 1000L;
 
-    private static final boolean DEFAULT_VERBOSE = true;
+    private VersionInfo versionInfo;
 
-    private static final boolean DEFAULT_OMIT_FIRST_SLASH = true;
+    // Settings and global power tools. Replaced whole on reload, never
+    // modified.
+    private volatile PowerToolSnapshot snapshot;
 
-    private static final boolean DEFAULT_USE_DISPLAY_NAMES = false;
+    private final ItemIdFilter itemIdFilter = new ItemIdFilter();
 
-    public static final int MAX_TRACE_DISTANCE = 100;
+    // Online player positions for crosshair targeting. Main thread only.
+    private final PlayerGrid playerGrid = new PlayerGrid();
 
-    private VersionInfo versionInfo;
+    // Scratch space for rendering commands. Main thread only.
+    private final StringBuilder commandBuffer = new StringBuilder();
 
-    private final Map<ItemKey, PowerTool> globalPowerTools = new HashMap<ItemKey, PowerTool>();
+    // State of online players. Created on the main thread (on join or first
+    // use) and removed on quit, but may be read from any thread.
+    private final ConcurrentMap<UUID, PlayerState> playerStates = new ConcurrentHashMap<UUID, PlayerState>();
 
     private FileConfiguration config;
 
     private PowerToolDao dao;
 
-    private String playerToken;
+    // The storage actually in use
+    private String storage;
 
-    private String xToken;
-    
-    private String yToken;
-    
-    private String zToken;
-    
-    private String yAirToken;
+    private volatile PowerToolStore playerStore;
 
-    private final List<GroupOption> groupOptions = new ArrayList<GroupOption>();
+    // Names of players known to have persistent power tools. null if unknown.
+    private volatile Set<String> playersWithPowerTools;
 
-    private GroupOption defaultGroupOption;
+    private WriteBehindQueue writeQueue;
 
-    private boolean verbose;
-    
-    private boolean omitFirstSlash;
+    private PlayerDaoCache playerDaoCache;
+
+    private volatile ExecutorService workerPool;
+
+    private final PowerToolPreloader preloader = new PowerToolPreloader(this);
+
+    // Current migration/export/import, if any. Only touched by main thread.
+    private StorageTransfer transfer;
 
-    private boolean useDisplayNames;
+    // Only touched by main thread
+    private boolean reloading;
+
+    // Permission decision cache statistics. Main thread only.
+    private long permissionCacheHits;
+
+    private long permissionCacheMisses;
+
+    // Players whose power tools changed while reloading. Only touched by
+    // main thread.
+    private final Set<String> modifiedDuringReload = new HashSet<String>();
 
     @Override
     public void onLoad() {
@@ -113,10 +144,27 @@ public class PowerToolPlugin extends JavaPlugin {
 
     @Override
     public void onDisable() {
-        for (Player player : Bukkit.getOnlinePlayers()) {
-            player.removeMetadata(PLAYER_METADATA_KEY, this);
+        cancelTransfer();
+        preloader.discardAll();
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+            workerPool = null;
         }
 
+        // Write out anything still pending
+        if (writeQueue != null) {
+            writeQueue.shutdown();
+            writeQueue = null;
+        }
+        if (playerDaoCache != null) {
+            playerDaoCache.invalidateAll();
+            playerDaoCache = null;
+        }
+        closePlayerStore();
+
+        playerStates.clear();
+        playerGrid.clear();
+
         log(this, "%s disabled.", versionInfo.getVersionString());
     }
 
@@ -126,14 +174,25 @@ public class PowerToolPlugin extends JavaPlugin {
         config.options().header(null);
 
         // Read/create config
-        readConfig();
+        PowerToolSettings settings = readSettings(config);
 
         // Upgrade/save config
         ToHFileUtils.upgradeConfig(this, config);
 
         // Set up DAO, load global power tools
-        initializeDao();
-        loadGlobalPowerTools();
+        dao = createDao(config, settings);
+        setSnapshot(settings, new PowerToolTable(dao.loadPowerTools(true)));
+        initializePlayerStore();
+        buildPresenceIndex();
+
+        // Start background writer
+        playerDaoCache = new PlayerDaoCache(this, settings.getPlayerCacheSize(), settings.getPlayerCacheIdle());
+        writeQueue = new WriteBehindQueue(this, settings.getWriteQueueSize());
+        writeQueue.start();
+
+        // Worker threads for preloading
+        workerPool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()),
+                new ThreadFactoryBuilder().setNameFormat("PowerTool-Worker-%d").setDaemon(true).build());
 
         // Install command handler
         (new ToHCommandExecutor<PowerToolPlugin>(this, new Commands(this))).registerCommands();
@@ -141,142 +200,176 @@ public class PowerToolPlugin extends JavaPlugin {
         // Install event listeners
         getServer().getPluginManager().registerEvents(new PowerToolListener(this), this);
 
-        // Load persistent power tools for anyone currently online
-        for (Player player : getServer().getOnlinePlayers())
-            loadPersistentPowerTools(player);
+        // Persistent power tools for anyone currently online will be loaded
+        // when first needed
+
+        // Anyone already online (e.g. after /reload)
+        for (Player player : Bukkit.getOnlinePlayers())
+            playerGrid.update(player, player.getLocation());
 
         log(this, "%s enabled.", versionInfo.getVersionString());
     }
 
-    private void readConfig() {
+    // May be called from any thread
+    private PowerToolSettings readSettings(FileConfiguration config) {
         getLogger().setLevel(config.getBoolean("debug", false) ? Level.CONFIG : null);
+        return new PowerToolSettings(this, config);
+    }
 
-        playerToken = config.getString("player-token", DEFAULT_PLAYER_TOKEN);
-        xToken = config.getString("x-token", DEFAULT_X_TOKEN);
-        yToken = config.getString("y-token", DEFAULT_Y_TOKEN);
-        zToken = config.getString("z-token", DEFAULT_Z_TOKEN);
-        yAirToken = config.getString("y-air-token", DEFAULT_Y_AIR_TOKEN);
-        verbose = config.getBoolean("verbose", DEFAULT_VERBOSE);
-        omitFirstSlash = config.getBoolean("omit-first-slash", DEFAULT_OMIT_FIRST_SLASH);
-        useDisplayNames = config.getBoolean("use-display-names", DEFAULT_USE_DISPLAY_NAMES);
-
-        // Group options
-        groupOptions.clear();
-        defaultGroupOption = new GroupOption("default");
-        List<?> opts = config.getList("options");
-        if (opts == null) opts = Collections.emptyList();
-        for (Object o : opts) {
-            if (o instanceof Map<?, ?>) {
-                Map<?, ?> opt = (Map<?, ?>)o;
-                Object nameObj = opt.get("name");
-                if (nameObj == null) {
-                    warn(this, "Missing name in options section");
-                    continue;
-                }
-                String name = nameObj.toString();
-                
-                GroupOption groupOption = new GroupOption(name);
-
-                Object limitObj = opt.get("limit");
-                if (!(limitObj instanceof Number)) {
-                    warn(this, "Limit for %s in options section must be a number; defaulting to -1", name);
-                }
-                else {
-                    groupOption.setLimit(((Number)limitObj).intValue());
-                }
-                
-                if ("default".equalsIgnoreCase(name)) {
-                    defaultGroupOption = groupOption;
-                }
-                else
-                    groupOptions.add(groupOption);
-            }
-            else
-                warn(this, "options section must be a list of maps");
-        }
-        debug(this, "defaultGroupOption = %s", defaultGroupOption);
-        debug(this, "groupOptions = %s", groupOptions);
+    private PowerToolDao createDao(FileConfiguration config, PowerToolSettings settings) {
+        return new YamlPowerToolDao(this, new File(getDataFolder(), "config.yml"), config, settings);
     }
 
-    private void loadGlobalPowerTools() {
-        // Read global powertools
-        globalPowerTools.clear();
-        globalPowerTools.putAll(getDao().loadPowerTools(true));
+    PowerToolSnapshot getSnapshot() {
+        return snapshot;
     }
 
-    private PowerToolDao getDao() {
-        return dao;
+    public PowerToolSettings getSettings() {
+        return snapshot.getSettings();
     }
 
     public String getPlayerToken() {
-        return playerToken;
+        return getSettings().getPlayerToken();
     }
 
     public String getXToken() {
-        return xToken;
+        return getSettings().getXToken();
     }
     
     public String getYToken() {
-        return yToken;
+        return getSettings().getYToken();
     }
     
     public String getZToken() {
-        return zToken;
+        return getSettings().getZToken();
     }
     
     public String getYAirToken() {
-        return yAirToken;
+        return getSettings().getYAirToken();
     }
 
     public boolean isVerbose() {
-        return verbose;
+        return getSettings().isVerbose();
     }
 
     public boolean isOmitFirstSlash() {
-        return omitFirstSlash;
+        return getSettings().isOmitFirstSlash();
     }
 
     public boolean isUseDisplayNames() {
-        return useDisplayNames;
+        return getSettings().isUseDisplayNames();
+    }
+
+    private void setSnapshot(PowerToolSettings settings, PowerToolTable globalPowerTools) {
+        if (snapshot != null)
+            itemIdFilter.removeAll(snapshot.getGlobalPowerTools().keySet());
+        snapshot = new PowerToolSnapshot(settings, globalPowerTools);
+        itemIdFilter.addAll(globalPowerTools.keySet());
+    }
+
+    // Quick check that's false if the item definitely isn't a power tool
+    // for this player. Doesn't allocate.
+    boolean isPossiblePowerTool(Player player, ItemStack item) {
+        if (itemIdFilter.contains(item.getTypeId())) return true;
+
+        // Unloaded power tools aren't in the filter
+        if (!hasPersistentPowerTools(player.getName())) return false;
+        PlayerState ps = getPlayerState(player, false);
+        return ps == null || !ps.isLoaded();
+    }
+
+    ItemIdFilter getItemIdFilter() {
+        return itemIdFilter;
     }
 
     PowerTool getPowerTool(Player player, ItemStack item, boolean create) {
-        ItemKey key = ItemKey.fromItemStack(item, isUseDisplayNames());
+        return getPowerTool(snapshot, player, item, player.getInventory().getHeldItemSlot(), create);
+    }
+
+    // item must be the stack in the given hotbar slot
+    PowerTool getPowerTool(PowerToolSnapshot snapshot, Player player, ItemStack item, int slot, boolean create) {
+        boolean useDisplayNames = snapshot.getSettings().isUseDisplayNames();
+        ItemKey key = null;
+        PowerTool pt;
 
         // Fetch global PowerTool first
-        PowerTool pt = globalPowerTools.get(key);
+        if (useDisplayNames && item.hasItemMeta()) {
+            // Might be named, which means copying its ItemMeta, so remember
+            // the result
+            key = getItemKey(player, item, slot);
+            pt = snapshot.getGlobalPowerTools().get(key);
+        }
+        else {
+            pt = snapshot.getGlobalPowerTools().get(item); // Doesn't build an ItemKey
+        }
 
         // If not defined, fetch player-specific PowerTool
         if (pt == null) {
-            PlayerState ps = getPlayerState(player, create);
+            PlayerState ps = getLoadedPlayerState(player, create);
 
-            if (ps != null)
+            if (ps != null) {
+                if (key == null)
+                    key = ItemKey.fromItemStack(item, useDisplayNames);
                 pt = ps.getPowerTool(key, create);
+            }
         }
 
         return pt;
     }
 
-    private PlayerState getPlayerState(Player player, boolean create) {
-        PlayerState ps = null;
-        for (MetadataValue mv : player.getMetadata(PLAYER_METADATA_KEY)) {
-            if (mv.getOwningPlugin() == this) {
-                ps = (PlayerState)mv.value();
-                break;
-            }
+    private ItemKey getItemKey(Player player, ItemStack item, int slot) {
+        PlayerState ps = getPlayerState(player, true);
+        long now = System.currentTimeMillis();
+        ItemKey key = ps.getHeldItemKey(slot, item, now);
+        if (key == null) {
+            // Only copies the ItemMeta now
+            key = ItemKey.fromItemStack(item, true);
+            ps.setHeldItemKey(slot, item, key, now + HELD_ITEM_KEY_TTL);
         }
+        return key;
+    }
+
+    // Called whenever the player's held item may have changed
+    void invalidateHeldItem(Player player) {
+        PlayerState ps = getPlayerState(player, false);
+        if (ps != null)
+            ps.setHeldItemKey(-1, null, null, 0L);
+    }
+
+    private PlayerState getPlayerState(Player player, boolean create) {
+        PlayerState ps = playerStates.get(player.getUniqueId());
         if (create && ps == null) {
-            ps = new PlayerState();
-            player.setMetadata(PLAYER_METADATA_KEY, new FixedMetadataValue(this, ps));
+            ps = new PlayerState(itemIdFilter);
+            PlayerState old = playerStates.putIfAbsent(player.getUniqueId(), ps);
+            if (old != null)
+                ps = old;
+        }
+        return ps;
+    }
+
+    // Returns the player's state with their persistent power tools loaded,
+    // loading them now if this is the first time they're needed.
+    private PlayerState getLoadedPlayerState(Player player, boolean create) {
+        PlayerState ps = getPlayerState(player, false);
+        if (ps == null || !ps.isLoaded()) {
+            if (hasPersistentPowerTools(player.getName())) {
+                ps = getPlayerState(player, true);
+                ps.setPowerTools(readPersistentPowerTools(player.getName()));
+            }
+            else if (create) {
+                ps = getPlayerState(player, true);
+                ps.setPowerTools(Collections.<ItemKey, PowerTool>emptyMap()); // Nothing to load
+            }
         }
         return ps;
     }
 
     boolean removePowerTool(Player player, ItemStack item) {
-        ItemKey key = ItemKey.fromItemStack(item, isUseDisplayNames());
-        if (globalPowerTools.containsKey(key)) return false;
+        PowerToolSnapshot snapshot = this.snapshot;
+        ItemKey key = ItemKey.fromItemStack(item, snapshot.getSettings().isUseDisplayNames());
+        if (snapshot.getGlobalPowerTools().containsKey(key)) return false;
 
-        PlayerState ps = getPlayerState(player, false);
+        PlayerState ps = getLoadedPlayerState(player, false);
         
         if (ps != null)
             ps.removePowerTool(key);
@@ -284,17 +377,17 @@ public class PowerToolPlugin extends JavaPlugin {
     }
 
     boolean clearPowerTools(Player player) {
-        PlayerState ps = getPlayerState(player, false);
+        PlayerState ps = getLoadedPlayerState(player, false);
         if (ps != null) {
             boolean empty = ps.getPowerTools().isEmpty();
-            ps.getPowerTools().clear();
+            ps.clearPowerTools();
             return !empty;
         }
         return false;
     }
 
     Map<ItemKey, PowerTool> getPowerTools(Player player) {
-        PlayerState ps = getPlayerState(player, false);
+        PlayerState ps = getLoadedPlayerState(player, false);
         if (ps == null) return Collections.emptyMap();
         return ps.getPowerTools();
     }
@@ -328,16 +421,78 @@ public class PowerToolPlugin extends JavaPlugin {
     }
 
     void forgetPlayer(Player player) {
-        player.removeMetadata(PLAYER_METADATA_KEY, this);
+        // If they're being kicked by a duplicate login, the new session's
+        // preload may not have seen their latest changes
+        preloader.discard(player.getName());
+        writeQueue.flush(player.getName());
+        playerDaoCache.invalidate(player.getName());
+        PlayerState ps = getPlayerState(player, false);
+        if (ps != null)
+            ps.unload(); // Drop from filter
+        playerStates.remove(player.getUniqueId());
     }
 
-    void execute(Player player, String commandString, boolean runAsConsole, Map<String, Boolean> permissions) {
+    // Returns the remembered result of checking the player's power tool
+    // permissions for the given material, or null if it needs checking.
+    Boolean getPermissionDecision(Player player, Material material) {
+        PlayerState ps = getPlayerState(player, false);
+        Boolean allowed = ps == null ? null : ps.getPermissionDecision(material, System.currentTimeMillis());
+        if (allowed != null)
+            permissionCacheHits++;
+        else
+            permissionCacheMisses++;
+        return allowed;
+    }
+
+    void setPermissionDecision(Player player, Material material, boolean allowed) {
+        int ttl = getSettings().getPermissionCacheTtl();
+        if (ttl <= 0) return; // Disabled
+        getPlayerState(player, true).setPermissionDecision(material, allowed, System.currentTimeMillis(), ttl * 1000L);
+    }
+
+    // Called whenever the player's permissions may have changed. Also
+    // forgets their group option.
+    void invalidatePermissionDecisions(Player player) {
+        PlayerState ps = getPlayerState(player, false);
+        if (ps != null) {
+            ps.clearPermissionDecisions();
+            ps.setGroupOption(null, 0L, 0L);
+        }
+    }
+
+    long getPermissionCacheHits() {
+        return permissionCacheHits;
+    }
+
+    long getPermissionCacheMisses() {
+        return permissionCacheMisses;
+    }
+
+    WriteBehindQueue getWriteQueue() {
+        return writeQueue;
+    }
+
+    PlayerDaoCache getPlayerDaoCache() {
+        return playerDaoCache;
+    }
+
+    void execute(final Player player, String commandString, boolean runAsConsole, Map<String, Boolean> permissions) {
         debug(this, "Executing command: %s", commandString);
         try {
             // Set temporary permissions, if needed
-            if (!permissions.isEmpty())
+            if (!permissions.isEmpty()) {
                 setTempPermissions(player, permissions);
 
+                // Don't remember anything decided while they're in effect
+                invalidatePermissionDecisions(player);
+                getServer().getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
+                    @Override
+                    public void run() {
+                        invalidatePermissionDecisions(player);
+                    }
+                }, 2L);
+            }
+
             PlayerCommandPreprocessEvent pcpe = new PlayerCommandPreprocessEvent(player, "/" + commandString);
             getServer().getPluginManager().callEvent(pcpe);
             
@@ -360,86 +515,439 @@ public class PowerToolPlugin extends JavaPlugin {
         catch (CommandException e) {
             error(this, "Execution failed: %s", commandString, e);
         }
+        markExecuted(player);
+    }
+
+    // Remembered so shouldExecute() can tell if this tick's power tool has
+    // already been handled
+    private void markExecuted(Player player) {
         PlayerState ps = getPlayerState(player, true);
         World world = player.getWorld();
         ps.setLastExecuteWorld(world.getName());
         ps.setLastExecuteTime(world.getTime());
     }
 
-    // Performs coordinate token substitutions.
-    // block may be null, in which case a BlockIterator will be run on the
-    // player to find the block they are looking at.
-    // May return null in odd cases.
-    String substituteLocation(Player player, Block block, String command, boolean hasAirToken) {
-        if (block == null) {
-            for (Iterator<Block> i = new BlockIterator(player, MAX_TRACE_DISTANCE); i.hasNext();) {
-                Block check = i.next();
-                if (!check.isEmpty()) {
-                    block = check;
-                    break;
+    // Whether the command may be traced and rendered on a worker thread
+    // rather than right away
+    boolean isAsyncTraceable(PowerToolSnapshot snapshot, PowerTool pt, CommandTemplate template) {
+        return snapshot.getSettings().isAsyncTrace() && pt.isRunAsConsole() &&
+                template.hasLocationToken() && template.isDetachable() && workerPool != null;
+    }
+
+    // Traces the player's line of sight on the worker pool, using copies of
+    // the chunks along it, then executes the rendered command (as console)
+    // back on the main thread a tick or so later
+    void executeAsync(final Player player, ItemStack item, final CommandTemplate template, final Map<String, Boolean> permissions) {
+        final Location eyeLocation = player.getEyeLocation();
+        final String worldName = eyeLocation.getWorld().getName();
+        final Material itemType = item.getType();
+        final SnapshotBlockSource blockSource = SnapshotBlockSource.capture(eyeLocation, MAX_TRACE_DISTANCE);
+
+        // Don't let the same click execute again in the meantime
+        markExecuted(player);
+
+        workerPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                SightTrace sightTrace = SightTrace.trace(eyeLocation, null, null, blockSource, MAX_TRACE_DISTANCE, true, false);
+                TokenContext context = new TokenContext(PowerToolPlugin.this, worldName, itemType, sightTrace, blockSource);
+                final String commandString = template.render(new StringBuilder(), context);
+                if (commandString == null) {
+                    debug(PowerToolPlugin.this, "No target for command: %s", template);
+                    return;
                 }
+
+                // Nothing may be scheduled once the plugin is disabled
+                if (!isEnabled()) return;
+                getServer().getScheduler().scheduleSyncDelayedTask(PowerToolPlugin.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (player.isOnline())
+                            execute(player, commandString, true, permissions);
+                    }
+                });
             }
-        }
+        });
+    }
 
-        // Y == 0 (bedrock) when tracing toward the sky. I guess BlockIterator
-        // wraps around?
-        // Not sure when block will be AIR (since we explicitly check above),
-        // but doesn't hurt to check!
-        if (block == null || block.getY() == 0 || block.isEmpty())
-            return null;
+    // Fills in the command's tokens. Returns null if any of them have no
+    // value.
+    String renderCommand(CommandTemplate template, TokenContext context) {
+        return template.render(commandBuffer, context);
+    }
 
-        // FIXME better way?
-        command = command.replace(getXToken(), Integer.toString(block.getX()));
-        command = command.replace(getYToken(), Integer.toString(block.getY()));
-        command = command.replace(getZToken(), Integer.toString(block.getZ()));
-        
-        if (hasAirToken) {
-            // Iterate blocks upwards until we find air
-            while (block != null && !block.isEmpty()) {
-                block = block.getRelative(0, 1, 0);
+    // Walks the player's line of sight once, looking for the first
+    // non-empty block and/or the first player not behind a solid block
+    SightTrace traceSight(Player player, boolean wantBlock, boolean wantPlayer) {
+        Location eyeLocation = player.getEyeLocation();
+        return SightTrace.trace(eyeLocation, player, playerGrid, new WorldBlockSource(eyeLocation.getWorld()), MAX_TRACE_DISTANCE, wantBlock, wantPlayer);
+    }
+
+    PlayerGrid getPlayerGrid() {
+        return playerGrid;
+    }
+
+    // Determines closest entity of the given type in-line with crosshairs.
+    // Uses ray-AABB intersection test. Everything is treated as a 1x2x1 box.
+    <T extends Entity> T findEntityInSight(Player player, Class<T> type) {
+        Location eyeLocation = player.getEyeLocation();
+        Vector direction = eyeLocation.getDirection(); // Unit length, so t is distance
+        double ox = eyeLocation.getX();
+        double oy = eyeLocation.getY();
+        double oz = eyeLocation.getZ();
+        double dx = direction.getX();
+        double dy = direction.getY();
+        double dz = direction.getZ();
+        Location otherLoc = new Location(null, 0.0, 0.0, 0.0); // Reused for each entity
+
+        T closest = null;
+        double closestDistance = MAX_TRACE_DISTANCE;
+
+        // FIXME I feel like this call can be improved by limiting the bounding box...
+        for (Entity e : player.getNearbyEntities(MAX_TRACE_DISTANCE, MAX_TRACE_DISTANCE, MAX_TRACE_DISTANCE)) {
+            if (!type.isInstance(e)) continue; // Only care about the given type
+
+            e.getLocation(otherLoc);
+
+            // Bounds of 1x2x1 AABB
+            double distance = Utils.rayBoxIntersect(ox, oy, oz, dx, dy, dz,
+                    otherLoc.getX() - 0.5, otherLoc.getY(), otherLoc.getZ() - 0.5,
+                    otherLoc.getX() + 0.5, otherLoc.getY() + 2.0, otherLoc.getZ() + 0.5);
+            if (distance >= 0.0 && distance < closestDistance) {
+                // Entity is within crosshairs and closer than the current
+                // closest
+                closest = type.cast(e);
+                closestDistance = distance;
             }
-            if (block == null)
-                return null;
-            command = command.replace(getYAirToken(), Integer.toString(block.getY()));
         }
-        
-        return command;
+
+        return closest;
     }
 
-    synchronized void reload() {
-        config = ToHFileUtils.getConfig(this);
-        readConfig();
-        initializeDao();
-        loadGlobalPowerTools();
-        
-        // Re-load power tools of all online players
-        final Queue<String> playersToRefresh = new LinkedList<String>();
+    // Re-reads config.yml and the power tools of all online players on the
+    // worker pool, then swaps everything in at once on the main thread.
+    // Returns false if a reload is already in progress.
+    boolean reload(final CommandSender sender) {
+        if (reloading) return false;
+        reloading = true;
+        modifiedDuringReload.clear();
+
+        cancelTransfer();
+        preloader.discardAll();
+
+        final List<String> playerNames = new ArrayList<String>();
         for (Player player : Bukkit.getOnlinePlayers())
-            playersToRefresh.add(player.getName());
+            playerNames.add(player.getName());
+        final PowerToolSettings currentSettings = getSettings();
+        final PowerToolStore currentStore = playerStore;
+        final ExecutorService workerPool = this.workerPool;
+
+        workerPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                ReloadResult result = null;
+                try {
+                    result = loadReloadResult(playerNames, currentSettings, currentStore, workerPool);
+                }
+                catch (RuntimeException e) {
+                    error(PowerToolPlugin.this, "Error reloading config.yml", e);
+                }
+                final ReloadResult reloadResult = result;
+                if (!isEnabled()) {
+                    if (reloadResult != null && reloadResult.playerStore != null)
+                        reloadResult.playerStore.close();
+                    return;
+                }
+                Bukkit.getScheduler().scheduleSyncDelayedTask(PowerToolPlugin.this, new Runnable() {
+                    @Override
+                    public void run() {
+                        applyReloadResult(reloadResult, sender);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    boolean isReloading() {
+        return reloading;
+    }
+
+    // Called on a worker thread. Builds everything from scratch without
+    // touching the live state.
+    private ReloadResult loadReloadResult(List<String> playerNames, PowerToolSettings currentSettings, PowerToolStore currentStore, ExecutorService workerPool) {
+        ReloadResult result = new ReloadResult();
+        result.config = ToHFileUtils.getConfig(this);
+        result.settings = readSettings(result.config);
+        result.dao = createDao(result.config, result.settings);
+        result.globalPowerTools = new PowerToolTable(result.dao.loadPowerTools(true));
+
+        // Make sure the store has everything before reading from it
+        writeQueue.flushAll();
+
+        final PowerToolStore store;
+        if (result.settings.isSameStorage(currentSettings)) {
+            // Keep using the current store, but re-read (to pick up manual edits)
+            store = currentStore;
+        }
+        else if (!result.settings.getStorage().equals(currentSettings.getStorage())) {
+            result.playerStore = openPlayerStoreOrDefault(result.settings);
+            result.storage = isKnownStorage(result.settings.getStorage()) ? result.settings.getStorage() : "yaml";
+            store = result.playerStore;
+        }
+        else {
+            // Same kind of store, but it reads differently now. Two
+            // instances of the same store can't safely be open at once, so
+            // it's re-opened during the swap and players are loaded lazily.
+            result.reopenPlayerStore = true;
+            return result;
+        }
 
-        // Do it synchronously with a delay between each load to minimize lag
-        if (!playersToRefresh.isEmpty()) {
-            final PowerToolPlugin plugin = this;
-            final long delay = 5L; // 5 ticks
-            Bukkit.getScheduler().scheduleSyncDelayedTask(this, new Runnable() {
+        try {
+            result.playersWithPowerTools = store.getPlayerNames();
+        }
+        catch (DaoException e) {
+            error(this, "Unable to list players with power tools", e);
+        }
+
+        // Read all online players in parallel
+        Map<String, Future<Map<ItemKey, PowerTool>>> futures = new HashMap<String, Future<Map<ItemKey, PowerTool>>>();
+        for (final String playerName : playerNames) {
+            if (result.playersWithPowerTools != null && !result.playersWithPowerTools.contains(playerName))
+                continue;
+            futures.put(playerName, workerPool.submit(new Callable<Map<ItemKey, PowerTool>>() {
+                @Override
+                public Map<ItemKey, PowerTool> call() throws Exception {
+                    // Always a fresh DAO, bypassing the cache
+                    return store.getPlayerDao(playerName).loadPowerTools(false);
+                }
+            }));
+        }
+        for (Map.Entry<String, Future<Map<ItemKey, PowerTool>>> me : futures.entrySet()) {
+            try {
+                result.playerPowerTools.put(me.getKey(), me.getValue().get());
+            }
+            catch (ExecutionException e) {
+                // They'll be loaded lazily instead
+                error(this, "Error loading power tools for %s", me.getKey(), e.getCause());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DaoException("Interrupted while reloading", e);
+            }
+        }
+        return result;
+    }
+
+    // Called on the main thread. Swaps in the results of a reload all at once.
+    private void applyReloadResult(final ReloadResult result, CommandSender sender) {
+        reloading = false;
+        if (result == null) {
+            modifiedDuringReload.clear();
+            sendMessage(sender, colorize("`rError reloading config.yml; see server log."));
+            return;
+        }
+
+        config = result.config;
+        dao = result.dao;
+        setSnapshot(result.settings, result.globalPowerTools);
+
+        // Anything preloaded was read with the old settings
+        preloader.discardAll();
+
+        if (result.playerStore != null || result.reopenPlayerStore) {
+            writeQueue.runExclusive(new Runnable() {
                 @Override
                 public void run() {
-                    if (!playersToRefresh.isEmpty()) {
-                        String playerName = playersToRefresh.remove();
-                        Player player = Bukkit.getPlayerExact(playerName);
-                        if (player != null)
-                            loadPersistentPowerTools(player);
-                        
-                        if (!playersToRefresh.isEmpty())
-                            Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, this, delay);
+                    writeQueue.flushAll();
+                    if (result.playerStore != null) {
+                        closePlayerStore();
+                        playerStore = result.playerStore;
+                        storage = result.storage;
                     }
+                    else
+                        initializePlayerStore();
+                    playerDaoCache.invalidateAll();
                 }
-            }, delay);
+            });
+        }
+        else
+            playerDaoCache.invalidateAll();
+
+        if (result.reopenPlayerStore)
+            buildPresenceIndex();
+        else if (result.playersWithPowerTools != null) {
+            Set<String> index = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            index.addAll(result.playersWithPowerTools);
+            index.addAll(modifiedDuringReload); // Doesn't hurt to check
+            playersWithPowerTools = index;
+        }
+        else
+            playersWithPowerTools = null;
+
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            invalidatePermissionDecisions(player);
+
+            PlayerState ps = getPlayerState(player, false);
+            Map<ItemKey, PowerTool> powerTools = result.playerPowerTools.get(player.getName());
+            if (!modifiedDuringReload.contains(player.getName()) && powerTools != null) {
+                getPlayerState(player, true).setPowerTools(powerTools);
+            }
+            else if (ps != null) {
+                // Load lazily
+                ps.unload();
+            }
         }
+        modifiedDuringReload.clear();
+
+        sendMessage(sender, colorize("`yconfig.yml reloaded."));
     }
 
-    private void initializeDao() {
-        dao = new YamlPowerToolDao(this, new File(getDataFolder(), "config.yml"), config, isUseDisplayNames());
+    // Forgets everything read from the player store
+    void refreshPlayerStore() {
+        buildPresenceIndex();
+        playerDaoCache.invalidateAll();
+        
+        // Online players' power tools will be re-loaded when next needed
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            PlayerState ps = getPlayerState(player, false);
+            if (ps != null)
+                ps.unload();
+        }
+    }
+
+    private void initializePlayerStore() {
+        closePlayerStore();
+
+        PowerToolSettings settings = getSettings();
+        playerStore = openPlayerStoreOrDefault(settings);
+        storage = isKnownStorage(settings.getStorage()) ? settings.getStorage() : "yaml";
+    }
+
+    // Opens the configured player store, falling back to YAML if needed
+    private PowerToolStore openPlayerStoreOrDefault(PowerToolSettings settings) {
+        String storage = settings.getStorage();
+        if (isKnownStorage(storage)) {
+            try {
+                PowerToolStore store = openPlayerStore(storage, settings);
+                debug(this, "Using %s player storage", storage);
+                return store;
+            }
+            catch (DaoException e) {
+                error(this, "Unable to use %s player storage; falling back to yaml", storage, e);
+            }
+        }
+        else {
+            warn(this, "Unknown storage '%s'; defaulting to yaml", storage);
+        }
+
+        return new YamlPowerToolStore(this, new File(getDataFolder(), "players"), settings);
+    }
+
+    static boolean isKnownStorage(String storage) {
+        return STORAGE_TYPES.contains(storage.toLowerCase());
+    }
+
+    String getStorage() {
+        return storage;
+    }
+
+    // Opens a new player store of the given type
+    PowerToolStore openPlayerStore(String storage, PowerToolSettings settings) {
+        if ("sqlite".equalsIgnoreCase(storage))
+            return new SqlitePowerToolStore(this, new File(getDataFolder(), "players.db"), settings);
+        else if ("binary".equalsIgnoreCase(storage))
+            return new BinaryPowerToolStore(this, new File(getDataFolder(), "players"), settings);
+        else if ("journal".equalsIgnoreCase(storage))
+            return new JournalPowerToolStore(this, getDataFolder(), settings);
+        else if ("yaml".equalsIgnoreCase(storage))
+            return new YamlPowerToolStore(this, new File(getDataFolder(), "players"), settings);
+        throw new DaoException("Unknown storage: " + storage, null);
+    }
+
+    PowerToolStore getPlayerStore() {
+        return playerStore;
+    }
+
+    // Cuts over to a freshly migrated player store. Called on main thread.
+    void switchPlayerStore(final String storage, final PowerToolStore target) {
+        writeQueue.runExclusive(new Runnable() {
+            @Override
+            public void run() {
+                // Anything pending still goes to both
+                writeQueue.flushAll();
+                writeQueue.setMirror(null);
+
+                closePlayerStore();
+                playerStore = target;
+                playerDaoCache.invalidateAll();
+            }
+        });
+        buildPresenceIndex();
+
+        // Make it stick
+        this.storage = storage;
+        config.set("storage", storage);
+        ToHFileUtils.saveConfig(this, config, getDataFolder(), "config.yml");
+        snapshot = snapshot.withSettings(readSettings(config));
+        log(this, "Now using %s player storage", storage);
+    }
+
+    // Returns false if another transfer is already running
+    boolean startTransfer(StorageTransfer transfer) {
+        if (this.transfer != null || reloading) return false;
+        this.transfer = transfer;
+        transfer.start();
+        return true;
+    }
+
+    StorageTransfer getTransfer() {
+        return transfer;
+    }
+
+    void transferEnded(StorageTransfer transfer) {
+        if (this.transfer == transfer)
+            this.transfer = null;
+    }
+
+    boolean cancelTransfer() {
+        if (transfer == null) return false;
+        transfer.cancel();
+        transfer = null;
+        return true;
+    }
+
+    // Builds the index of players with persistent power tools, so players
+    // without any never touch the store.
+    private void buildPresenceIndex() {
+        try {
+            Set<String> index = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            index.addAll(playerStore.getPlayerNames());
+            playersWithPowerTools = index;
+            debug(this, "%d player(s) with persistent power tools", index.size());
+        }
+        catch (DaoException e) {
+            error(this, "Unable to list players with power tools", e);
+            playersWithPowerTools = null; // Always check
+        }
+    }
+
+    // May be called from any thread
+    private boolean hasPersistentPowerTools(String playerName) {
+        Set<String> index = playersWithPowerTools;
+        return index == null || index.contains(playerName);
+    }
+
+    private void closePlayerStore() {
+        if (playerStore != null) {
+            try {
+                playerStore.close();
+            }
+            catch (DaoException e) {
+                error(this, "Error closing player storage", e);
+            }
+            playerStore = null;
+        }
     }
 
     public static String getMaterialName(Material material) {
@@ -449,93 +957,149 @@ public class PowerToolPlugin extends JavaPlugin {
     }
 
     void savePersistentPowerTool(Player player, ItemStack item, PowerTool powerTool) {
-        File playerConfigFile = getPlayerConfigFile(player);
-        if (playerConfigFile == null) return;
-
-        PowerToolDao playerDao = new YamlPowerToolDao(this, playerConfigFile, isUseDisplayNames());
-
         // Since each player has their own file, save at the global scope.
         ItemKey key = ItemKey.fromItemStack(item, isUseDisplayNames());
         debug(this, "Saving persistent power tool (%s) for %s", key, player.getName());
-        playerDao.savePowerTool(key, powerTool);
+        writeQueue.save(player.getName(), key, powerTool);
+        if (reloading)
+            modifiedDuringReload.add(player.getName());
+
+        Set<String> index = playersWithPowerTools;
+        if (index != null)
+            index.add(player.getName());
     }
 
     void removePersistentPowerTool(Player player, ItemStack item) {
-        File playerConfigFile = getPlayerConfigFile(player);
-        if (playerConfigFile == null) return;
-
-        PowerToolDao playerDao = new YamlPowerToolDao(this, playerConfigFile, isUseDisplayNames());
-        
         ItemKey key = ItemKey.fromItemStack(item, isUseDisplayNames());
         debug(this, "Removing persistent power tool (%s) for %s", key, player.getName());
-        playerDao.removePowerTool(key);
+        writeQueue.remove(player.getName(), key);
+        if (reloading)
+            modifiedDuringReload.add(player.getName());
     }
 
     void clearPersistentPowerTools(Player player) {
-        File playerConfigFile = getPlayerConfigFile(player);
-        if (playerConfigFile == null) return;
-        
-        // Just be lazy and delete
         debug(this, "Clearing persistent power tools for %s", player.getName());
-        if (playerConfigFile.exists() && !playerConfigFile.delete()) {
-            error(this, "Unable to delete player configuration file: %s", playerConfigFile);
-        }
+        writeQueue.clear(player.getName());
+        if (reloading)
+            modifiedDuringReload.add(player.getName());
+
+        Set<String> index = playersWithPowerTools;
+        if (index != null)
+            index.remove(player.getName());
+    }
+
+    // Called during async pre-login
+    void preloadPersistentPowerTools(String playerName) {
+        // Nothing to do for players without power tools
+        if (!hasPersistentPowerTools(playerName)) return;
+
+        ExecutorService workerPool = this.workerPool;
+        if (workerPool != null)
+            preloader.preload(playerName, workerPool);
     }
 
     void loadPersistentPowerTools(Player player) {
-        File playerConfigFile = getPlayerConfigFile(player);
-        if (playerConfigFile == null) return;
-        
-        if (playerConfigFile.exists()) {
-            debug(this, "Loading persistent power tools for %s", player.getName());
-            PowerToolDao playerDao = new YamlPowerToolDao(this, playerConfigFile, isUseDisplayNames());
-            Map<ItemKey, PowerTool> powerTools = playerDao.loadPowerTools(false);
-            if (!powerTools.isEmpty()) {
-                // Load into player state
-                PlayerState ps = getPlayerState(player, true);
-                ps.getPowerTools().clear();
-                ps.getPowerTools().putAll(powerTools);
-            }
+        // If not preloaded, they'll be loaded when first needed
+        Map<ItemKey, PowerTool> powerTools = preloader.claim(player.getName());
+        if (powerTools != null) {
+            debug(this, "Using preloaded power tools for %s", player.getName());
+            getPlayerState(player, true).setPowerTools(powerTools);
         }
     }
 
-    private File getPlayerConfigFile(Player player) {
-        File playerConfigDir = new File(getDataFolder(), "players");
-        if (!playerConfigDir.exists() && !playerConfigDir.mkdirs()) {
-            error(this, "Unable to create player configuration directory: %s", playerConfigDir);
-            return null;
+    // May be called from any thread
+    Map<ItemKey, PowerTool> readPersistentPowerTools(String playerName) {
+        // Make sure any outstanding changes hit the store first
+        writeQueue.flush(playerName);
+
+        try {
+            if (playerStore.hasPowerTools(playerName)) {
+                debug(this, "Loading persistent power tools for %s", playerName);
+                PowerToolDao playerDao = playerDaoCache.get(playerName);
+                return playerDao.loadPowerTools(false);
+            }
+        }
+        catch (RuntimeException e) {
+            error(this, "Error loading power tools for %s", playerName, e);
         }
+        return Collections.emptyMap();
+    }
+
+    // Called from the write-behind thread
+    PowerToolDao getPlayerDao(String playerName) {
+        return playerDaoCache.get(playerName);
+    }
 
-        return new File(playerConfigDir, player.getName() + ".yml");
+    // Called by PlayerDaoCache on a miss
+    PowerToolDao createPlayerDao(String playerName) {
+        return playerStore.getPlayerDao(playerName);
     }
 
-    boolean isOverLimit(Player player) {
-        // Figure out player's group
-        GroupOption groupOption = null;
-        for (GroupOption go : groupOptions) {
-            // Check if it's explicitly set so we avoid defaulted values
-            if (player.isPermissionSet(go.getName()) && player.hasPermission(go.getName())) {
-                groupOption = go;
-                break;
+    // Called from the write-behind thread
+    void deletePersistentPowerTools(String playerName) {
+        // Cached copy is no longer valid
+        playerDaoCache.invalidate(playerName);
+
+        playerStore.clearPowerTools(playerName);
+    }
+
+    // Returns the player's group option, figuring it out if it isn't
+    // already known
+    PowerToolSettings.GroupOption getGroupOption(Player player) {
+        PlayerState ps = getPlayerState(player, true);
+        long now = System.currentTimeMillis();
+        PowerToolSettings.GroupOption groupOption = ps.getGroupOption(now);
+        if (groupOption == null) {
+            PowerToolSettings settings = getSettings();
+
+            // Figure out player's group
+            for (PowerToolSettings.GroupOption go : settings.getGroupOptions()) {
+                // Check if it's explicitly set so we avoid defaulted values
+                if (player.isPermissionSet(go.getName()) && player.hasPermission(go.getName())) {
+                    groupOption = go;
+                    break;
+                }
             }
+
+            // Use default, if necessary
+            if (groupOption == null)
+                groupOption = settings.getDefaultGroupOption();
+
+            debug(this, "Player %s using group option %s", player.getName(), groupOption);
+
+            // Permissions may change without notice, so this is only
+            // remembered as long as permission decisions are
+            ps.setGroupOption(groupOption, now, settings.getPermissionCacheTtl() * 1000L);
         }
+        return groupOption;
+    }
 
-        // Use default, if necessary
-        if (groupOption == null)
-            groupOption = defaultGroupOption;
+    // Checks whether binding the action would put the player over their
+    // limits. pt is the player's existing power tool for the item, if any.
+    boolean isOverLimit(Player player, PowerTool pt, PowerToolAction action) {
+        PowerToolSettings.GroupOption groupOption = getGroupOption(player);
 
-        debug(this, "Player %s using group option %s", player.getName(), groupOption);
+        PlayerState ps = getLoadedPlayerState(player, false);
+        Map<ItemKey, PowerTool> powerTools = ps == null ? Collections.<ItemKey, PowerTool>emptyMap() : ps.getPowerTools();
 
-        // Count the player's current number of power tools
-        int current;
-        PlayerState ps = getPlayerState(player, false);
-        if (ps == null)
-            current = 0;
-        else
-            current = ps.getPowerTools().size();
+        if (pt == null) {
+            // Count the player's current number of power tools
+            int limit = groupOption.getLimit(player.getWorld().getName());
+            if (limit > -1 && powerTools.size() >= limit)
+                return true;
+        }
 
-        int limit = groupOption.getLimit();
-        return limit > -1 && current >= limit;
+        int actionLimit = groupOption.getActionLimit(action);
+        if (actionLimit > -1) {
+            int current = 0;
+            for (PowerTool other : powerTools.values()) {
+                if (other.getCommand(action) != null)
+                    current++;
+            }
+            if (current >= actionLimit)
+                return true;
+        }
+        return false;
     }
 
     private void setTempPermissions(Permissible permissible, Map<String, Boolean> permissions) {
@@ -579,28 +1143,134 @@ public class PowerToolPlugin extends JavaPlugin {
 
         private final Map<ItemKey, PowerTool> powerTools = new HashMap<ItemKey, PowerTool>();
 
-        private boolean enabled = true;
+        // Kept in sync with powerTools
+        private final ItemIdFilter itemIdFilter;
+
+        // Whether persistent power tools have been loaded
+        private volatile boolean loaded;
+
+        private volatile boolean enabled = true;
 
         private String lastExecuteWorld;
 
         private long lastExecuteTime;
 
+        // ItemKey last resolved for a held item with meta, along with
+        // where it came from. Main thread only.
+        private ItemKey heldItemKey;
+
+        private int heldItemSlot = -1;
+
+        private int heldItemId;
+
+        private short heldItemDurability;
+
+        private long heldItemKeyExpire;
+
+        // Whether the player may use power tools of each material, and when
+        // these decisions expire. Main thread only.
+        private final Map<Material, Boolean> permissionDecisions = new EnumMap<Material, Boolean>(Material.class);
+
+        private long permissionDecisionsExpire;
+
+        // Cached group option and when it expires. Main thread only.
+        private PowerToolSettings.GroupOption groupOption;
+
+        private long groupOptionExpire;
+
+        public PlayerState(ItemIdFilter itemIdFilter) {
+            this.itemIdFilter = itemIdFilter;
+        }
+
+        // Should be treated as read-only
         public Map<ItemKey, PowerTool> getPowerTools() {
             return powerTools;
         }
 
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        public void setPowerTools(Map<ItemKey, PowerTool> powerTools) {
+            clearPowerTools();
+            this.powerTools.putAll(powerTools);
+            itemIdFilter.addAll(powerTools.keySet());
+            loaded = true;
+        }
+
+        // Returns the remembered ItemKey if it was resolved from the same
+        // slot, the stack's ID and durability still match and it hasn't
+        // expired, otherwise null. The display name isn't checked, since
+        // that means copying the ItemMeta.
+        public ItemKey getHeldItemKey(int slot, ItemStack item, long now) {
+            if (heldItemKey != null && now < heldItemKeyExpire && slot == heldItemSlot &&
+                    item.getTypeId() == heldItemId && item.getDurability() == heldItemDurability)
+                return heldItemKey;
+            return null;
+        }
+
+        public void setHeldItemKey(int slot, ItemStack item, ItemKey key, long expire) {
+            heldItemSlot = slot;
+            heldItemKey = key;
+            heldItemKeyExpire = expire;
+            if (item != null) {
+                heldItemId = item.getTypeId();
+                heldItemDurability = item.getDurability();
+            }
+        }
+
+        public Boolean getPermissionDecision(Material material, long now) {
+            if (now >= permissionDecisionsExpire) {
+                permissionDecisions.clear();
+                return null;
+            }
+            return permissionDecisions.get(material);
+        }
+
+        public void setPermissionDecision(Material material, boolean allowed, long now, long ttl) {
+            if (permissionDecisions.isEmpty())
+                permissionDecisionsExpire = now + ttl;
+            permissionDecisions.put(material, allowed);
+        }
+
+        public PowerToolSettings.GroupOption getGroupOption(long now) {
+            return now < groupOptionExpire ? groupOption : null;
+        }
+
+        public void setGroupOption(PowerToolSettings.GroupOption groupOption, long now, long ttl) {
+            this.groupOption = groupOption;
+            groupOptionExpire = now + ttl;
+        }
+
+        public void clearPermissionDecisions() {
+            permissionDecisions.clear();
+            permissionDecisionsExpire = 0L;
+        }
+
+        public void unload() {
+            clearPowerTools();
+            loaded = false;
+        }
+
+        public void clearPowerTools() {
+            itemIdFilter.removeAll(powerTools.keySet());
+            powerTools.clear();
+        }
+
         public PowerTool getPowerTool(ItemKey key, boolean create) {
             PowerTool pt = powerTools.get(key);
             if (create && pt == null) {
                 pt = new PowerTool();
                 powerTools.put(key, pt);
+                itemIdFilter.add(key.getItemId());
             }
             
             return pt;
         }
 
         public void removePowerTool(ItemKey key) {
-            powerTools.remove(key);
+            if (powerTools.remove(key) != null)
+                itemIdFilter.remove(key.getItemId());
         }
 
         public boolean isEnabled() {
@@ -629,34 +1299,27 @@ public class PowerToolPlugin extends JavaPlugin {
         
     }
 
-    private static class GroupOption {
+    // Everything read during a reload, waiting to be swapped in
+    private static class ReloadResult {
 
-        private final String name;
+        private FileConfiguration config;
 
-        private int limit = -1;
-        
-        private GroupOption(String name) {
-            if (!hasText(name))
-                throw new IllegalArgumentException("name must have a value");
-            this.name = name;
-        }
+        private PowerToolSettings settings;
 
-        public String getName() {
-            return name;
-        }
+        private PowerToolDao dao;
 
-        public int getLimit() {
-            return limit;
-        }
+        private PowerToolTable globalPowerTools;
 
-        public void setLimit(int limit) {
-            this.limit = limit;
-        }
-        
-        @Override
-        public String toString() {
-            return String.format("GroupOption[name=%s, limit=%d]", getName(), getLimit());
-        }
+        // New player store, if the storage changed
+        private PowerToolStore playerStore;
+
+        private String storage;
+
+        private boolean reopenPlayerStore;
+
+        private Set<String> playersWithPowerTools;
+
+        private final Map<String, Map<ItemKey, PowerTool>> playerPowerTools = new HashMap<String, Map<ItemKey, PowerTool>>();
 
     }
 
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+// Loads player power tools on a worker thread while the player is still
+// logging in. The results are parked until the player actually joins.
+class PowerToolPreloader {
+
+    // Preloads not claimed within this time are assumed to be for logins
+    // that never completed
+    private static final long MAX_AGE = 60000L; // ms
+
+    private final PowerToolPlugin plugin;
+
+    private final ConcurrentMap<String, Preload> preloads = new ConcurrentHashMap<String, Preload>();
+
+    PowerToolPreloader(PowerToolPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    // May be called from any thread
+    void preload(final String playerName, Executor executor) {
+        purgeStale();
+
+        FutureTask<Map<ItemKey, PowerTool>> task = new FutureTask<Map<ItemKey, PowerTool>>(new Callable<Map<ItemKey, PowerTool>>() {
+            @Override
+            public Map<ItemKey, PowerTool> call() throws Exception {
+                return plugin.readPersistentPowerTools(playerName);
+            }
+        });
+
+        Preload old = preloads.put(playerName, new Preload(task));
+        if (old != null)
+            old.getTask().cancel(false);
+
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down, most likely. Fall back to loading on join.
+            preloads.remove(playerName);
+        }
+    }
+
+    // Returns the preloaded power tools, or null if they aren't available
+    // (never started, still running, or failed).
+    Map<ItemKey, PowerTool> claim(String playerName) {
+        Preload preload = preloads.remove(playerName);
+        if (preload == null) return null;
+
+        FutureTask<Map<ItemKey, PowerTool>> task = preload.getTask();
+        if (!task.isDone()) {
+            debug(plugin, "Preload for %s not finished", playerName);
+            task.cancel(false);
+            return null;
+        }
+
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            error(plugin, "Error preloading power tools for %s", playerName, e.getCause());
+        }
+        catch (CancellationException e) {
+            // Superseded by a newer preload
+        }
+        return null;
+    }
+
+    void discard(String playerName) {
+        Preload preload = preloads.remove(playerName);
+        if (preload != null)
+            preload.getTask().cancel(false);
+    }
+
+    void discardAll() {
+        for (Iterator<Preload> i = preloads.values().iterator(); i.hasNext();) {
+            i.next().getTask().cancel(false);
+            i.remove();
+        }
+    }
+
+    private void purgeStale() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Preload> i = preloads.values().iterator(); i.hasNext();) {
+            Preload preload = i.next();
+            if (now - preload.getCreated() > MAX_AGE) {
+                preload.getTask().cancel(false);
+                i.remove();
+            }
+        }
+    }
+
+    private static class Preload {
+
+        private final FutureTask<Map<ItemKey, PowerTool>> task;
+
+        private final long created = System.currentTimeMillis();
+
+        public Preload(FutureTask<Map<ItemKey, PowerTool>> task) {
+            this.task = task;
+        }
+
+        public FutureTask<Map<ItemKey, PowerTool>> getTask() {
+            return task;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+    }
+
+}
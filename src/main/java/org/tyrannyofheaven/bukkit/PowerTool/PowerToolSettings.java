@@ -0,0 +1,417 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.warn;
+import static org.tyrannyofheaven.bukkit.util.ToHStringUtils.hasText;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+// Everything read from config.yml (other than global power tools). Immutable,
+// so a new instance can be built off the main thread and swapped in whole.
+public final class PowerToolSettings {
+
+    private static final String DEFAULT_PLAYER_TOKEN = "%p";
+
+    private static final String DEFAULT_X_TOKEN = "%x";
+
+    private static final String DEFAULT_Y_TOKEN = "%y";
+
+    private static final String DEFAULT_Z_TOKEN = "%z";
+
+    private static final String DEFAULT_Y_AIR_TOKEN = "%Y";
+
+    private static final String DEFAULT_WORLD_TOKEN = "%w";
+
+    private static final String DEFAULT_BLOCK_TOKEN = "%b";
+
+    private static final String DEFAULT_ITEM_TOKEN = "%i";
+
+    private static final String DEFAULT_ENTITY_TOKEN = "%e";
+
+    private static final boolean DEFAULT_VERBOSE = true;
+
+    private static final boolean DEFAULT_OMIT_FIRST_SLASH = true;
+
+    private static final boolean DEFAULT_USE_DISPLAY_NAMES = false;
+
+    private static final String DEFAULT_STORAGE = "yaml";
+
+    private static final boolean DEFAULT_EXPORT_YAML = false;
+
+    private static final int DEFAULT_WRITE_QUEUE_SIZE = 256;
+
+    private static final int DEFAULT_PLAYER_CACHE_SIZE = 100;
+
+    private static final int DEFAULT_PLAYER_CACHE_IDLE = 10; // minutes
+
+    private static final int DEFAULT_PERMISSION_CACHE_TTL = 30; // seconds
+
+    private static final boolean DEFAULT_ASYNC_TRACE = false;
+
+    private static final YAirMode DEFAULT_Y_AIR_MODE = YAirMode.FIRST_AIR;
+
+    private final String playerToken;
+
+    private final String xToken;
+
+    private final String yToken;
+
+    private final String zToken;
+
+    private final String yAirToken;
+
+    private final String worldToken;
+
+    private final String blockToken;
+
+    private final String itemToken;
+
+    private final String entityToken;
+
+    private final List<TokenProvider> tokenProviders;
+
+    private final boolean verbose;
+
+    private final boolean omitFirstSlash;
+
+    private final boolean useDisplayNames;
+
+    private final String storage;
+
+    private final boolean exportYaml;
+
+    private final int writeQueueSize;
+
+    private final int playerCacheSize;
+
+    private final int playerCacheIdle;
+
+    private final int permissionCacheTtl;
+
+    private final boolean asyncTrace;
+
+    private final YAirMode yAirMode;
+
+    private final List<GroupOption> groupOptions;
+
+    private final GroupOption defaultGroupOption;
+
+    // Reads settings from the given config. Problems are logged and the
+    // offending settings defaulted. May be called from any thread.
+    PowerToolSettings(PowerToolPlugin plugin, ConfigurationSection config) {
+        playerToken = config.getString("player-token", DEFAULT_PLAYER_TOKEN);
+        xToken = config.getString("x-token", DEFAULT_X_TOKEN);
+        yToken = config.getString("y-token", DEFAULT_Y_TOKEN);
+        zToken = config.getString("z-token", DEFAULT_Z_TOKEN);
+        yAirToken = config.getString("y-air-token", DEFAULT_Y_AIR_TOKEN);
+        worldToken = config.getString("world-token", DEFAULT_WORLD_TOKEN);
+        blockToken = config.getString("block-token", DEFAULT_BLOCK_TOKEN);
+        itemToken = config.getString("item-token", DEFAULT_ITEM_TOKEN);
+        entityToken = config.getString("entity-token", DEFAULT_ENTITY_TOKEN);
+
+        List<TokenProvider> tokenProviders = new ArrayList<TokenProvider>();
+        tokenProviders.add(new StandardToken(StandardToken.Type.PLAYER, playerToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.X, xToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.Y, yToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.Z, zToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.Y_AIR, yAirToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.WORLD, worldToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.BLOCK, blockToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.ITEM, itemToken));
+        tokenProviders.add(new StandardToken(StandardToken.Type.ENTITY, entityToken));
+        this.tokenProviders = Collections.unmodifiableList(tokenProviders);
+        verbose = config.getBoolean("verbose", DEFAULT_VERBOSE);
+        omitFirstSlash = config.getBoolean("omit-first-slash", DEFAULT_OMIT_FIRST_SLASH);
+        useDisplayNames = config.getBoolean("use-display-names", DEFAULT_USE_DISPLAY_NAMES);
+        storage = config.getString("storage", DEFAULT_STORAGE).toLowerCase();
+        exportYaml = config.getBoolean("export-yaml", DEFAULT_EXPORT_YAML);
+
+        int writeQueueSize = config.getInt("write-queue-size", DEFAULT_WRITE_QUEUE_SIZE);
+        if (writeQueueSize < 1) {
+            warn(plugin, "write-queue-size must be positive; defaulting to %d", DEFAULT_WRITE_QUEUE_SIZE);
+            writeQueueSize = DEFAULT_WRITE_QUEUE_SIZE;
+        }
+        this.writeQueueSize = writeQueueSize;
+        int playerCacheSize = config.getInt("player-cache-size", DEFAULT_PLAYER_CACHE_SIZE);
+        if (playerCacheSize < 0) {
+            warn(plugin, "player-cache-size must not be negative; defaulting to %d", DEFAULT_PLAYER_CACHE_SIZE);
+            playerCacheSize = DEFAULT_PLAYER_CACHE_SIZE;
+        }
+        this.playerCacheSize = playerCacheSize;
+        int playerCacheIdle = config.getInt("player-cache-idle", DEFAULT_PLAYER_CACHE_IDLE);
+        if (playerCacheIdle < 1) {
+            warn(plugin, "player-cache-idle must be positive; defaulting to %d", DEFAULT_PLAYER_CACHE_IDLE);
+            playerCacheIdle = DEFAULT_PLAYER_CACHE_IDLE;
+        }
+        this.playerCacheIdle = playerCacheIdle;
+        int permissionCacheTtl = config.getInt("permission-cache-ttl", DEFAULT_PERMISSION_CACHE_TTL);
+        if (permissionCacheTtl < 0) {
+            warn(plugin, "permission-cache-ttl must not be negative; defaulting to %d", DEFAULT_PERMISSION_CACHE_TTL);
+            permissionCacheTtl = DEFAULT_PERMISSION_CACHE_TTL;
+        }
+        this.permissionCacheTtl = permissionCacheTtl;
+        asyncTrace = config.getBoolean("async-trace", DEFAULT_ASYNC_TRACE);
+        String yAirModeName = config.getString("y-air-mode", DEFAULT_Y_AIR_MODE.getDisplayName());
+        YAirMode yAirMode = YAirMode.fromDisplayName(yAirModeName);
+        if (yAirMode == null) {
+            warn(plugin, "Unknown y-air-mode '%s'; defaulting to %s", yAirModeName, DEFAULT_Y_AIR_MODE.getDisplayName());
+            yAirMode = DEFAULT_Y_AIR_MODE;
+        }
+        this.yAirMode = yAirMode;
+
+        // Group options
+        List<GroupOption> groupOptions = new ArrayList<GroupOption>();
+        GroupOption defaultGroupOption = new GroupOption("default", -1, Collections.<PowerToolAction, Integer>emptyMap(), Collections.<String, Integer>emptyMap());
+        List<?> opts = config.getList("options");
+        if (opts == null) opts = Collections.emptyList();
+        for (Object o : opts) {
+            if (o instanceof Map<?, ?>) {
+                Map<?, ?> opt = (Map<?, ?>)o;
+                Object nameObj = opt.get("name");
+                if (nameObj == null) {
+                    warn(plugin, "Missing name in options section");
+                    continue;
+                }
+                String name = nameObj.toString();
+
+                int limit = -1;
+                Object limitObj = opt.get("limit");
+                if (!(limitObj instanceof Number)) {
+                    warn(plugin, "Limit for %s in options section must be a number; defaulting to -1", name);
+                }
+                else {
+                    limit = ((Number)limitObj).intValue();
+                }
+
+                // Optional limits by action, e.g. left-click: 3
+                Map<PowerToolAction, Integer> actionLimits = new EnumMap<PowerToolAction, Integer>(PowerToolAction.class);
+                for (Map.Entry<String, Integer> me : readLimits(plugin, name, "action-limits", opt.get("action-limits")).entrySet()) {
+                    PowerToolAction action = null;
+                    for (PowerToolAction a : PowerToolAction.values()) {
+                        if (a.getDisplayName().equalsIgnoreCase(me.getKey()))
+                            action = a;
+                    }
+                    if (action == null)
+                        warn(plugin, "Unknown action %s in action-limits for %s", me.getKey(), name);
+                    else
+                        actionLimits.put(action, me.getValue());
+                }
+
+                // Optional limits by world, replacing limit in that world
+                Map<String, Integer> worldLimits = readLimits(plugin, name, "world-limits", opt.get("world-limits"));
+
+                GroupOption groupOption = new GroupOption(name, limit, actionLimits, worldLimits);
+
+                if ("default".equalsIgnoreCase(name)) {
+                    defaultGroupOption = groupOption;
+                }
+                else
+                    groupOptions.add(groupOption);
+            }
+            else
+                warn(plugin, "options section must be a list of maps");
+        }
+        this.groupOptions = Collections.unmodifiableList(groupOptions);
+        this.defaultGroupOption = defaultGroupOption;
+        debug(plugin, "defaultGroupOption = %s", defaultGroupOption);
+        debug(plugin, "groupOptions = %s", groupOptions);
+    }
+
+    // Reads a map of names to limits from an options entry
+    private static Map<String, Integer> readLimits(PowerToolPlugin plugin, String name, String key, Object limitsObj) {
+        Map<String, Integer> limits = new HashMap<String, Integer>();
+        if (limitsObj == null) return limits;
+        if (!(limitsObj instanceof Map<?, ?>)) {
+            warn(plugin, "%s for %s in options section must be a map", key, name);
+            return limits;
+        }
+        for (Map.Entry<?, ?> me : ((Map<?, ?>)limitsObj).entrySet()) {
+            if (me.getValue() instanceof Number)
+                limits.put(me.getKey().toString(), ((Number)me.getValue()).intValue());
+            else
+                warn(plugin, "Limit for %s in %s for %s must be a number; ignoring", me.getKey(), key, name);
+        }
+        return limits;
+    }
+
+    public String getPlayerToken() {
+        return playerToken;
+    }
+
+    public String getXToken() {
+        return xToken;
+    }
+
+    public String getYToken() {
+        return yToken;
+    }
+
+    public String getZToken() {
+        return zToken;
+    }
+
+    public String getYAirToken() {
+        return yAirToken;
+    }
+
+    public String getWorldToken() {
+        return worldToken;
+    }
+
+    public String getBlockToken() {
+        return blockToken;
+    }
+
+    public String getItemToken() {
+        return itemToken;
+    }
+
+    public String getEntityToken() {
+        return entityToken;
+    }
+
+    // Everything that may appear in a bound command
+    public List<TokenProvider> getTokenProviders() {
+        return tokenProviders;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public boolean isOmitFirstSlash() {
+        return omitFirstSlash;
+    }
+
+    public boolean isUseDisplayNames() {
+        return useDisplayNames;
+    }
+
+    public String getStorage() {
+        return storage;
+    }
+
+    public boolean isExportYaml() {
+        return exportYaml;
+    }
+
+    public int getWriteQueueSize() {
+        return writeQueueSize;
+    }
+
+    public int getPlayerCacheSize() {
+        return playerCacheSize;
+    }
+
+    public int getPlayerCacheIdle() {
+        return playerCacheIdle;
+    }
+
+    // Seconds. 0 if disabled.
+    public int getPermissionCacheTtl() {
+        return permissionCacheTtl;
+    }
+
+    public boolean isAsyncTrace() {
+        return asyncTrace;
+    }
+
+    public YAirMode getYAirMode() {
+        return yAirMode;
+    }
+
+    List<GroupOption> getGroupOptions() {
+        return groupOptions;
+    }
+
+    GroupOption getDefaultGroupOption() {
+        return defaultGroupOption;
+    }
+
+    // True if a player store opened with the other settings would read
+    // and write exactly the same way
+    boolean isSameStorage(PowerToolSettings other) {
+        return storage.equals(other.storage) &&
+                useDisplayNames == other.useDisplayNames &&
+                exportYaml == other.exportYaml &&
+                playerToken.equals(other.playerToken) &&
+                xToken.equals(other.xToken) &&
+                yToken.equals(other.yToken) &&
+                zToken.equals(other.zToken) &&
+                yAirToken.equals(other.yAirToken) &&
+                worldToken.equals(other.worldToken) &&
+                blockToken.equals(other.blockToken) &&
+                itemToken.equals(other.itemToken) &&
+                entityToken.equals(other.entityToken);
+    }
+
+    static class GroupOption {
+
+        private final String name;
+
+        private final int limit;
+
+        private final Map<PowerToolAction, Integer> actionLimits;
+
+        private final Map<String, Integer> worldLimits;
+
+        private GroupOption(String name, int limit, Map<PowerToolAction, Integer> actionLimits, Map<String, Integer> worldLimits) {
+            if (!hasText(name))
+                throw new IllegalArgumentException("name must have a value");
+            this.name = name;
+            this.limit = limit;
+            this.actionLimits = Collections.unmodifiableMap(actionLimits);
+            this.worldLimits = Collections.unmodifiableMap(worldLimits);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        // Limit on the number of power tools while in the given world
+        public int getLimit(String worldName) {
+            Integer worldLimit = worldLimits.get(worldName);
+            return worldLimit != null ? worldLimit : limit;
+        }
+
+        // Limit on the number of power tools bound to the given action. -1
+        // if unlimited.
+        public int getActionLimit(PowerToolAction action) {
+            Integer actionLimit = actionLimits.get(action);
+            return actionLimit != null ? actionLimit : -1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("GroupOption[name=%s, limit=%d, actionLimits=%s, worldLimits=%s]", getName(), getLimit(), actionLimits, worldLimits);
+        }
+
+    }
+
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+// Everything that's read on every click but only changes on reload:
+// settings (which include the tokens) and global power tools. Immutable and
+// replaced whole, so a reader that fetches it once sees a consistent view
+// from any thread without locking.
+final class PowerToolSnapshot {
+
+    private final PowerToolSettings settings;
+
+    private final PowerToolTable globalPowerTools;
+
+    PowerToolSnapshot(PowerToolSettings settings, PowerToolTable globalPowerTools) {
+        this.settings = settings;
+        this.globalPowerTools = globalPowerTools;
+    }
+
+    PowerToolSettings getSettings() {
+        return settings;
+    }
+
+    PowerToolTable getGlobalPowerTools() {
+        return globalPowerTools;
+    }
+
+    PowerToolSnapshot withSettings(PowerToolSettings settings) {
+        return new PowerToolSnapshot(settings, globalPowerTools);
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.inventory.ItemStack;
+
+// Immutable lookup table for global power tools. Power tools without a
+// display name are found by item ID and data packed into an int, using open
+// addressing, so looking up an unnamed ItemStack doesn't allocate. Power tools
+// qualified by display name are kept in an ordinary map.
+final class PowerToolTable {
+
+    private static final int EMPTY = -1;
+
+    private final int[] keys;
+
+    private final PowerTool[] values;
+
+    private final int mask;
+
+    private final Map<ItemKey, PowerTool> named;
+
+    private final Map<ItemKey, PowerTool> powerTools;
+
+    PowerToolTable(Map<ItemKey, PowerTool> powerTools) {
+        this.powerTools = Collections.unmodifiableMap(new HashMap<ItemKey, PowerTool>(powerTools));
+
+        // Keep load factor at or below 0.5
+        int capacity = 16;
+        while (capacity < powerTools.size() * 2)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new PowerTool[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+
+        Map<ItemKey, PowerTool> named = new HashMap<ItemKey, PowerTool>();
+        for (Map.Entry<ItemKey, PowerTool> me : powerTools.entrySet()) {
+            ItemKey key = me.getKey();
+            if (key.getDisplayName() != null) {
+                named.put(key, me.getValue());
+                continue;
+            }
+
+            int packed = pack(key.getItemId(), key.getData());
+            int i = indexFor(packed);
+            while (keys[i] != EMPTY && keys[i] != packed)
+                i = (i + 1) & mask;
+            keys[i] = packed;
+            values[i] = me.getValue();
+        }
+        this.named = named.isEmpty() ? Collections.<ItemKey, PowerTool>emptyMap() : named;
+    }
+
+    // Item ID in the upper bits, data in the low 8 (only if the item
+    // actually uses data to distinguish itself)
+    private static int pack(int itemId, byte data) {
+        return (itemId << 8) | (ItemKey.hasData(itemId) ? data & 0xff : 0);
+    }
+
+    private int indexFor(int packed) {
+        return (packed * 0x9e3779b9 >>> 16) & mask;
+    }
+
+    private PowerTool get(int packed) {
+        int i = indexFor(packed);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == packed)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    // Only for items without a display name (or when display names are
+    // ignored)
+    PowerTool get(ItemStack item) {
+        return get(pack(item.getTypeId(), (byte)item.getDurability()));
+    }
+
+    PowerTool get(ItemKey key) {
+        if (key.getDisplayName() != null)
+            return named.get(key);
+        return get(pack(key.getItemId(), key.getData()));
+    }
+
+    boolean containsKey(ItemKey key) {
+        return get(key) != null;
+    }
+
+    Set<ItemKey> keySet() {
+        return powerTools.keySet();
+    }
+
+}
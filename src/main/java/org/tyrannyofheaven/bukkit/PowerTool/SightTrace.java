@@ -0,0 +1,232 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.List;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+// A single walk along a player's line of sight, visiting blocks in order
+// (voxel DDA) and testing the players registered in each grid cell the ray
+// enters. Finds the first non-empty block and/or the first player not
+// hidden behind a solid block, stopping as soon as everything asked for is
+// known. Blocks come from a BlockSource, so a block-only trace over chunk
+// snapshots may be done on any thread. Looking for players is main thread
+// only.
+final class SightTrace {
+
+    private final World world;
+
+    private final boolean wantBlock;
+
+    private final boolean wantPlayer;
+
+    private boolean blockFound;
+
+    private int blockX;
+
+    private int blockY;
+
+    private int blockZ;
+
+    private int blockTypeId;
+
+    private Player player;
+
+    private SightTrace(World world, boolean wantBlock, boolean wantPlayer) {
+        this.world = world;
+        this.wantBlock = wantBlock;
+        this.wantPlayer = wantPlayer;
+    }
+
+    // viewer and playerGrid are only used if wantPlayer is true
+    static SightTrace trace(Location eyeLocation, Player viewer, PlayerGrid playerGrid, BlockSource blockSource, double maxDistance, boolean wantBlock, boolean wantPlayer) {
+        SightTrace trace = new SightTrace(eyeLocation.getWorld(), wantBlock, wantPlayer);
+        if (wantBlock || wantPlayer)
+            trace.run(eyeLocation, viewer, playerGrid, blockSource, maxDistance);
+        return trace;
+    }
+
+    // Whether the block was looked for
+    boolean hasBlock() {
+        return wantBlock;
+    }
+
+    // Whether the player was looked for
+    boolean hasPlayer() {
+        return wantPlayer;
+    }
+
+    boolean isBlockFound() {
+        return blockFound;
+    }
+
+    int getBlockX() {
+        return blockX;
+    }
+
+    int getBlockY() {
+        return blockY;
+    }
+
+    int getBlockZ() {
+        return blockZ;
+    }
+
+    int getBlockTypeId() {
+        return blockTypeId;
+    }
+
+    // The first non-empty block, or null. Main thread only.
+    Block getBlock() {
+        return blockFound ? world.getBlockAt(blockX, blockY, blockZ) : null;
+    }
+
+    // The first player in sight, or null
+    Player getPlayer() {
+        return player;
+    }
+
+    private void run(Location eyeLocation, Player viewer, PlayerGrid playerGrid, BlockSource blockSource, double maxDistance) {
+        String worldName = world.getName();
+        int maxHeight = blockSource.getMaxHeight();
+
+        Vector direction = eyeLocation.getDirection(); // Unit length, so t is distance
+        double ox = eyeLocation.getX();
+        double oy = eyeLocation.getY();
+        double oz = eyeLocation.getZ();
+        double dx = direction.getX();
+        double dy = direction.getY();
+        double dz = direction.getZ();
+
+        int x = (int)Math.floor(ox);
+        int y = (int)Math.floor(oy);
+        int z = (int)Math.floor(oz);
+        int stepX = dx > 0.0 ? 1 : -1;
+        int stepY = dy > 0.0 ? 1 : -1;
+        int stepZ = dz > 0.0 ? 1 : -1;
+        double tDeltaX = dx != 0.0 ? 1.0 / Math.abs(dx) : Double.POSITIVE_INFINITY;
+        double tDeltaY = dy != 0.0 ? 1.0 / Math.abs(dy) : Double.POSITIVE_INFINITY;
+        double tDeltaZ = dz != 0.0 ? 1.0 / Math.abs(dz) : Double.POSITIVE_INFINITY;
+        double tMaxX = dx != 0.0 ? ((dx > 0.0 ? x + 1 : x) - ox) / dx : Double.POSITIVE_INFINITY;
+        double tMaxY = dy != 0.0 ? ((dy > 0.0 ? y + 1 : y) - oy) / dy : Double.POSITIVE_INFINITY;
+        double tMaxZ = dz != 0.0 ? ((dz > 0.0 ? z + 1 : z) - oz) / dz : Double.POSITIVE_INFINITY;
+
+        boolean needBlock = wantBlock;
+        boolean needPlayer = wantPlayer;
+        Location scratch = new Location(null, 0.0, 0.0, 0.0);
+        Player candidate = null;
+        double candidateT = Double.POSITIVE_INFINITY;
+        int cellX = 0;
+        int cellZ = 0;
+        boolean cellTested = false;
+
+        double tEnter = 0.0;
+        while (tEnter <= maxDistance && (needBlock || needPlayer)) {
+            if (needPlayer) {
+                // Test the players in this block's cell, if it's a new one.
+                // Hitboxes span cells, so the nearest hit so far only wins
+                // once the walk has passed it.
+                int cx = x >> PlayerGrid.CELL_SHIFT;
+                int cz = z >> PlayerGrid.CELL_SHIFT;
+                if (!cellTested || cx != cellX || cz != cellZ) {
+                    cellTested = true;
+                    cellX = cx;
+                    cellZ = cz;
+                    List<Player> players = playerGrid.getPlayers(worldName, cx, cz);
+                    if (players != null) {
+                        for (Player other : players) {
+                            if (other == viewer) continue;
+                            double t = PlayerGrid.intersect(other, scratch, ox, oy, oz, dx, dy, dz);
+                            if (t >= 0.0 && t < candidateT) {
+                                candidate = other;
+                                candidateT = t;
+                            }
+                        }
+                    }
+                }
+                if (candidateT < tEnter) {
+                    player = candidate;
+                    needPlayer = false;
+                }
+            }
+
+            if (y >= 0 && y < maxHeight) {
+                int typeId = blockSource.getTypeId(x, y, z);
+                if (typeId < 0) {
+                    // Can't see any further
+                    if (needPlayer && candidateT <= tEnter)
+                        player = candidate;
+                    return;
+                }
+                else if (typeId != 0) {
+                    if (needBlock) {
+                        blockFound = true;
+                        blockX = x;
+                        blockY = y;
+                        blockZ = z;
+                        blockTypeId = typeId;
+                        needBlock = false;
+                    }
+                    if (needPlayer && isSolid(typeId)) {
+                        // Anyone further away is hidden
+                        if (candidateT <= tEnter)
+                            player = candidate;
+                        needPlayer = false;
+                    }
+                }
+            }
+            else if (!needPlayer && ((y < 0 && dy <= 0.0) || (y >= maxHeight && dy >= 0.0))) {
+                // Left the world for good, so there are no more blocks to
+                // find. Players may still be out there (flying above build
+                // height, say), so keep walking the cells if one's wanted.
+                break;
+            }
+
+            // Step to the next block
+            if (tMaxX < tMaxY && tMaxX < tMaxZ) {
+                x += stepX;
+                tEnter = tMaxX;
+                tMaxX += tDeltaX;
+            }
+            else if (tMaxY < tMaxZ) {
+                y += stepY;
+                tEnter = tMaxY;
+                tMaxY += tDeltaY;
+            }
+            else {
+                z += stepZ;
+                tEnter = tMaxZ;
+                tMaxZ += tDeltaZ;
+            }
+        }
+
+        // Ran out of distance (or world) without anything in the way
+        if (needPlayer && candidateT <= maxDistance)
+            player = candidate;
+    }
+
+    private static boolean isSolid(int typeId) {
+        Material material = Material.getMaterial(typeId);
+        return material != null && material.isSolid();
+    }
+
+}
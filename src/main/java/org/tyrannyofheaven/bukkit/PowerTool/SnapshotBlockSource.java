@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import java.util.Arrays;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+
+// Copies of the loaded chunks along a line of sight, taken on the main
+// thread so the trace itself can be done on any thread. Blocks in chunks
+// that weren't copied are unknown.
+final class SnapshotBlockSource implements BlockSource {
+
+    private static final int CHUNK_SHIFT = 4;
+
+    private static final double CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    // How close the boundary crossings have to be to count as a corner
+    private static final double TIE_EPSILON = 1e-6;
+
+    private final World world;
+
+    private final int maxHeight;
+
+    // A ray only crosses a handful of chunks, so a linear search is fine.
+    // Only grown while capturing.
+    private int[] chunkXs;
+
+    private int[] chunkZs;
+
+    private ChunkSnapshot[] snapshots;
+
+    private int count;
+
+    private int last;
+
+    private SnapshotBlockSource(World world, int capacity) {
+        this.world = world;
+        this.maxHeight = world.getMaxHeight();
+        this.chunkXs = new int[capacity];
+        this.chunkZs = new int[capacity];
+        this.snapshots = new ChunkSnapshot[capacity];
+    }
+
+    // Copies the chunks a ray from the given eye location passes through,
+    // nearest first, up to maxDistance. Stops at the first one that isn't
+    // loaded, or once a block trace couldn't get any further anyway. Main
+    // thread only.
+    static SnapshotBlockSource capture(Location eyeLocation, double maxDistance) {
+        World world = eyeLocation.getWorld();
+        Vector direction = eyeLocation.getDirection();
+        double ox = eyeLocation.getX();
+        double oy = eyeLocation.getY();
+        double oz = eyeLocation.getZ();
+        double dx = direction.getX();
+        double dy = direction.getY();
+        double dz = direction.getZ();
+
+        int cx = (int)Math.floor(ox) >> CHUNK_SHIFT;
+        int cz = (int)Math.floor(oz) >> CHUNK_SHIFT;
+        int stepX = dx > 0.0 ? 1 : -1;
+        int stepZ = dz > 0.0 ? 1 : -1;
+        double tDeltaX = dx != 0.0 ? CHUNK_SIZE / Math.abs(dx) : Double.POSITIVE_INFINITY;
+        double tDeltaZ = dz != 0.0 ? CHUNK_SIZE / Math.abs(dz) : Double.POSITIVE_INFINITY;
+        double tMaxX = dx != 0.0 ? ((dx > 0.0 ? cx + 1 : cx) * CHUNK_SIZE - ox) / dx : Double.POSITIVE_INFINITY;
+        double tMaxZ = dz != 0.0 ? ((dz > 0.0 ? cz + 1 : cz) * CHUNK_SIZE - oz) / dz : Double.POSITIVE_INFINITY;
+
+        // Each step crosses one chunk boundary
+        SnapshotBlockSource source = new SnapshotBlockSource(world, 2 + (int)(2.0 * maxDistance / CHUNK_SIZE));
+
+        double tEnter = 0.0;
+        while (tEnter <= maxDistance) {
+            if (dy >= 0.0 && oy + tEnter * dy >= source.maxHeight)
+                break; // Above the world for good
+            if (!source.add(cx, cz))
+                break; // Don't load chunks just for this
+
+            // Copying a chunk costs far more than reading a few blocks, so
+            // don't copy any past where the block walk must stop. Look where
+            // the ray leaves this chunk: if that's below the world or inside
+            // a block, the walk ends here (or sooner).
+            double tExit = Math.max(0.0, Math.min(Math.min(tMaxX, tMaxZ), maxDistance) - TIE_EPSILON);
+            int y = (int)Math.floor(oy + tExit * dy);
+            if (y < 0 ||
+                    (y < source.maxHeight && source.getTypeId((int)Math.floor(ox + tExit * dx), y, (int)Math.floor(oz + tExit * dz)) > 0))
+                break;
+
+            if (Math.abs(tMaxX - tMaxZ) < TIE_EPSILON) {
+                // Through (or very near) a corner. The block walk breaks ties
+                // its own way, with its own rounding, so it may clip either
+                // side chunk on its way to the diagonal one. If a side chunk
+                // isn't loaded, the block walk can't see past it there, same
+                // as anywhere else.
+                if (tMaxX <= maxDistance) {
+                    source.add(cx + stepX, cz);
+                    source.add(cx, cz + stepZ);
+                }
+                cx += stepX;
+                cz += stepZ;
+                tEnter = Math.min(tMaxX, tMaxZ);
+                tMaxX += tDeltaX;
+                tMaxZ += tDeltaZ;
+            }
+            else if (tMaxX < tMaxZ) {
+                cx += stepX;
+                tEnter = tMaxX;
+                tMaxX += tDeltaX;
+            }
+            else {
+                cz += stepZ;
+                tEnter = tMaxZ;
+                tMaxZ += tDeltaZ;
+            }
+        }
+
+        return source;
+    }
+
+    // Copies the given chunk, if loaded. Returns false if it isn't.
+    private boolean add(int cx, int cz) {
+        if (!world.isChunkLoaded(cx, cz))
+            return false;
+        if (count == snapshots.length) {
+            // Only corners add extra chunks, so this is rare
+            int capacity = 2 * snapshots.length;
+            chunkXs = Arrays.copyOf(chunkXs, capacity);
+            chunkZs = Arrays.copyOf(chunkZs, capacity);
+            snapshots = Arrays.copyOf(snapshots, capacity);
+        }
+        chunkXs[count] = cx;
+        chunkZs[count] = cz;
+        snapshots[count] = world.getChunkAt(cx, cz).getChunkSnapshot(true, false, false); // With heightmap
+        count++;
+        return true;
+    }
+
+    @Override
+    public int getTypeId(int x, int y, int z) {
+        ChunkSnapshot snapshot = getSnapshot(x >> CHUNK_SHIFT, z >> CHUNK_SHIFT);
+        if (snapshot == null) return -1;
+        return snapshot.getBlockTypeId(x & 0xf, y, z & 0xf);
+    }
+
+    @Override
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    @Override
+    public boolean isSectionEmpty(int x, int sectionY, int z) {
+        ChunkSnapshot snapshot = getSnapshot(x >> CHUNK_SHIFT, z >> CHUNK_SHIFT);
+        return snapshot != null && snapshot.isSectionEmpty(sectionY);
+    }
+
+    @Override
+    public int getHeightmapY(int x, int z) {
+        ChunkSnapshot snapshot = getSnapshot(x >> CHUNK_SHIFT, z >> CHUNK_SHIFT);
+        if (snapshot == null) return -1;
+        return snapshot.getHighestBlockYAt(x & 0xf, z & 0xf);
+    }
+
+    private ChunkSnapshot getSnapshot(int cx, int cz) {
+        // Usually the same chunk as last time
+        if (last < count && chunkXs[last] == cx && chunkZs[last] == cz)
+            return snapshots[last];
+        for (int i = 0; i < count; i++) {
+            if (chunkXs[i] == cx && chunkZs[i] == cz) {
+                last = i;
+                return snapshots[i];
+            }
+        }
+        return null;
+    }
+
+}
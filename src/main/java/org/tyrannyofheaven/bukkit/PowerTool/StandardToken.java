@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+
+// The tokens PowerTool supplies itself. The token strings come from
+// config.yml.
+final class StandardToken implements TokenProvider {
+
+    private final Type type;
+
+    private final String token;
+
+    StandardToken(Type type, String token) {
+        this.type = type;
+        this.token = token;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    @Override
+    public String getToken() {
+        return token;
+    }
+
+    @Override
+    public TokenTarget getTarget() {
+        return type.getTarget();
+    }
+
+    @Override
+    public String getValue(TokenContext context) {
+        switch (type) {
+        case PLAYER:
+            Player targetPlayer = context.getTargetPlayer();
+            return targetPlayer == null ? null : targetPlayer.getName();
+        case X:
+        case Y:
+        case Z:
+            if (!context.hasTargetLocation()) return null;
+            return Integer.toString(type == Type.X ? context.getTargetX() : type == Type.Y ? context.getTargetY() : context.getTargetZ());
+        case Y_AIR:
+            int airY = context.getAirY();
+            return airY < 0 ? null : Integer.toString(airY);
+        case WORLD:
+            return context.getWorldName();
+        case BLOCK:
+            if (!context.hasTargetLocation()) return null;
+            Material targetType = context.getTargetType();
+            return targetType == null ? null : targetType.name().toLowerCase();
+        case ITEM:
+            return context.getItemType().name().toLowerCase();
+        case ENTITY:
+            Entity targetEntity = context.getTargetEntity();
+            return targetEntity == null ? null : Integer.toString(targetEntity.getEntityId());
+        default:
+            throw new AssertionError("Unknown token type: " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StandardToken[type=%s, token=%s]", type, token);
+    }
+
+    static enum Type {
+        PLAYER(TokenTarget.PLAYER),
+        X(TokenTarget.BLOCK),
+        Y(TokenTarget.BLOCK),
+        Z(TokenTarget.BLOCK),
+        Y_AIR(TokenTarget.BLOCK),
+        WORLD(TokenTarget.NONE),
+        BLOCK(TokenTarget.BLOCK),
+        ITEM(TokenTarget.NONE),
+        ENTITY(TokenTarget.ENTITY);
+
+        private final TokenTarget target;
+
+        private Type(TokenTarget target) {
+            this.target = target;
+        }
+
+        public TokenTarget getTarget() {
+            return target;
+        }
+
+    }
+
+}
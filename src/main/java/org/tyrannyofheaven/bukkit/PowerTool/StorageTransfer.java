@@ -0,0 +1,382 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.log;
+import static org.tyrannyofheaven.bukkit.util.ToHMessageUtils.colorize;
+import static org.tyrannyofheaven.bukkit.util.ToHMessageUtils.sendMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolArchive;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolDao;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolStore;
+
+// Moves player power tools in bounded batches on a background thread.
+// Each batch is copied with writes held off, and there is a pause between
+// batches so the writer thread (and the disk) can keep up with everyone
+// else.
+abstract class StorageTransfer implements Runnable {
+
+    private static final int BATCH_SIZE = 50;
+
+    private static final long BATCH_DELAY = 250L; // ms
+
+    private static final long CANCEL_WAIT = 5000L; // ms
+
+    protected final PowerToolPlugin plugin;
+
+    private final CommandSender sender;
+
+    private volatile boolean cancelled;
+
+    private volatile int transferred;
+
+    // Everything transferred, but finished() hasn't run yet
+    private volatile boolean pending;
+
+    private Thread thread;
+
+    protected StorageTransfer(PowerToolPlugin plugin, CommandSender sender) {
+        this.plugin = plugin;
+        this.sender = sender;
+    }
+
+    // A short description, e.g. "Migration to sqlite"
+    abstract String getDescription();
+
+    protected abstract void transfer() throws IOException, InterruptedException;
+
+    // Called on the main thread once everything has been transferred
+    protected void finished() {
+    }
+
+    // Called on the transfer thread if cancelled or failed
+    protected void aborted() {
+    }
+
+    void start() {
+        thread = new Thread(this, "PowerTool-Transfer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Waits a bit for the current batch to finish
+    void cancel() {
+        cancelled = true;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(CANCEL_WAIT);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pending) {
+            // Too late to finish
+            pending = false;
+            aborted();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    int getTransferred() {
+        return transferred;
+    }
+
+    @Override
+    public final void run() {
+        boolean success = false;
+        try {
+            transfer();
+            success = !cancelled;
+        }
+        catch (InterruptedException e) {
+            // Cancelled
+        }
+        catch (Exception e) {
+            error(plugin, "%s failed", getDescription(), e);
+            report("`r%s failed: %s", getDescription(), e.getMessage());
+        }
+        finally {
+            if (!success) {
+                aborted();
+                if (cancelled)
+                    report("`y%s cancelled after `g%d`y player(s).", getDescription(), transferred);
+            }
+            pending = success;
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending && !cancelled) {
+                        pending = false;
+                        finished();
+                        report("`y%s complete: `g%d`y player(s).", getDescription(), transferred);
+                    }
+                    plugin.transferEnded(StorageTransfer.this);
+                }
+            });
+        }
+    }
+
+    // Runs the given task for each of the given players, a batch at a time
+    protected void forEachPlayer(List<String> playerNames, final PlayerTask task) throws InterruptedException {
+        for (int i = 0; i < playerNames.size(); i += BATCH_SIZE) {
+            final List<String> batch = playerNames.subList(i, Math.min(i + BATCH_SIZE, playerNames.size()));
+            plugin.getWriteQueue().runExclusive(new Runnable() {
+                @Override
+                public void run() {
+                    for (String playerName : batch) {
+                        // Make sure the source is up-to-date first
+                        plugin.getWriteQueue().flush(playerName);
+                        task.run(playerName);
+                    }
+                }
+            });
+            batchDone(batch.size(), playerNames.size());
+        }
+    }
+
+    protected void batchDone(int count, int total) throws InterruptedException {
+        transferred += count;
+        if (total >= 0)
+            report("`y%s: `g%d`y of `g%d`y player(s)", getDescription(), transferred, total);
+        else
+            report("`y%s: `g%d`y player(s)", getDescription(), transferred);
+
+        if (cancelled || Thread.interrupted())
+            throw new InterruptedException();
+        Thread.sleep(BATCH_DELAY);
+    }
+
+    protected void report(String format, Object... args) {
+        final String message = String.format(colorize(format), args);
+        log(plugin, "%s", ChatColor.stripColor(message));
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(sender, "%s", message);
+            }
+        });
+    }
+
+    // Nothing may be scheduled once the plugin is disabled
+    protected void runOnMainThread(Runnable task) {
+        if (plugin.isEnabled())
+            Bukkit.getScheduler().scheduleSyncDelayedTask(plugin, task);
+    }
+
+    protected List<String> getSortedPlayerNames(PowerToolStore store) {
+        List<String> playerNames = new ArrayList<String>(store.getPlayerNames());
+        Collections.sort(playerNames, String.CASE_INSENSITIVE_ORDER);
+        return playerNames;
+    }
+
+    protected static interface PlayerTask {
+
+        public void run(String playerName);
+
+    }
+
+    // Copies everything from the live store to a new one. Changes made in
+    // the meantime are written to both, and the plugin switches over once
+    // the copy is complete.
+    static class Migration extends StorageTransfer {
+
+        private final String storage;
+
+        private final PowerToolStore target;
+
+        Migration(PowerToolPlugin plugin, CommandSender sender, String storage, PowerToolStore target) {
+            super(plugin, sender);
+            this.storage = storage;
+            this.target = target;
+        }
+
+        @Override
+        String getDescription() {
+            return "Migration to " + storage;
+        }
+
+        @Override
+        protected void transfer() throws InterruptedException {
+            plugin.getWriteQueue().setMirror(target);
+
+            forEachPlayer(getSortedPlayerNames(plugin.getPlayerStore()), new PlayerTask() {
+                @Override
+                public void run(String playerName) {
+                    Map<ItemKey, PowerTool> powerTools = plugin.getPlayerDao(playerName).loadPowerTools(false);
+                    target.clearPowerTools(playerName);
+                    if (!powerTools.isEmpty()) {
+                        PowerToolDao dao = target.getPlayerDao(playerName);
+                        for (Map.Entry<ItemKey, PowerTool> me : powerTools.entrySet()) {
+                            dao.savePowerTool(me.getKey(), me.getValue());
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected void finished() {
+            plugin.switchPlayerStore(storage, target);
+        }
+
+        @Override
+        protected void aborted() {
+            plugin.getWriteQueue().setMirror(null);
+            try {
+                target.close();
+            }
+            catch (RuntimeException e) {
+                error(plugin, "Error closing %s player storage", storage, e);
+            }
+        }
+
+    }
+
+    // Writes everything in the live store to an archive. The file is only
+    // replaced once the archive is complete.
+    static class Export extends StorageTransfer {
+
+        private final File file;
+
+        Export(PowerToolPlugin plugin, CommandSender sender, File file) {
+            super(plugin, sender);
+            this.file = file;
+        }
+
+        @Override
+        String getDescription() {
+            return "Export to " + file.getName();
+        }
+
+        @Override
+        protected void transfer() throws IOException, InterruptedException {
+            final PowerToolArchive.Writer writer = new PowerToolArchive.Writer(file);
+            try {
+                final IOException[] failure = new IOException[1];
+                forEachPlayer(getSortedPlayerNames(plugin.getPlayerStore()), new PlayerTask() {
+                    @Override
+                    public void run(String playerName) {
+                        if (failure[0] != null) return;
+                        Map<ItemKey, PowerTool> powerTools = plugin.getPlayerDao(playerName).loadPowerTools(false);
+                        if (powerTools.isEmpty()) return;
+                        try {
+                            writer.write(playerName, powerTools);
+                        }
+                        catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                });
+                if (failure[0] != null)
+                    throw failure[0];
+                writer.finish();
+            }
+            finally {
+                writer.close();
+            }
+        }
+
+    }
+
+    // Reads an archive into the live store. Players in the archive have
+    // their existing power tools replaced.
+    static class Import extends StorageTransfer {
+
+        private final File file;
+
+        Import(PowerToolPlugin plugin, CommandSender sender, File file) {
+            super(plugin, sender);
+            this.file = file;
+        }
+
+        @Override
+        String getDescription() {
+            return "Import from " + file.getName();
+        }
+
+        @Override
+        protected void transfer() throws IOException, InterruptedException {
+            PowerToolArchive.Reader reader = new PowerToolArchive.Reader(file, plugin.getSettings());
+            try {
+                boolean more = true;
+                while (more) {
+                    // Read a batch at a time
+                    final List<String> playerNames = new ArrayList<String>(BATCH_SIZE);
+                    final List<Map<ItemKey, PowerTool>> powerToolsList = new ArrayList<Map<ItemKey, PowerTool>>(BATCH_SIZE);
+                    while (playerNames.size() < BATCH_SIZE && (more = reader.next())) {
+                        playerNames.add(reader.getPlayerName());
+                        powerToolsList.add(reader.getPowerTools());
+                    }
+                    if (playerNames.isEmpty()) break;
+
+                    plugin.getWriteQueue().runExclusive(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < playerNames.size(); i++) {
+                                String playerName = playerNames.get(i);
+                                // Anything pending is about to be replaced
+                                plugin.getWriteQueue().flush(playerName);
+                                plugin.deletePersistentPowerTools(playerName);
+                                PowerToolDao dao = plugin.getPlayerDao(playerName);
+                                for (Map.Entry<ItemKey, PowerTool> me : powerToolsList.get(i).entrySet()) {
+                                    dao.savePowerTool(me.getKey(), me.getValue());
+                                }
+                            }
+                        }
+                    });
+                    batchDone(playerNames.size(), -1);
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        @Override
+        protected void finished() {
+            plugin.refreshPlayerStore();
+        }
+
+        @Override
+        protected void aborted() {
+            // Partially imported, so pick up what made it
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    plugin.refreshPlayerStore();
+                }
+            });
+        }
+
+    }
+
+}
@@ -19,6 +19,7 @@ import static org.tyrannyofheaven.bukkit.util.ToHMessageUtils.colorize;
 import static org.tyrannyofheaven.bukkit.util.ToHMessageUtils.sendMessage;
 import static org.tyrannyofheaven.bukkit.util.ToHStringUtils.delimitedString;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -32,6 +33,8 @@ import org.bukkit.command.PluginCommand;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.material.MaterialData;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.DaoException;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolStore;
 import org.tyrannyofheaven.bukkit.util.command.Command;
 import org.tyrannyofheaven.bukkit.util.command.Option;
 import org.tyrannyofheaven.bukkit.util.command.Require;
@@ -213,8 +216,124 @@ public class SubCommands {
     @Command(value="reload", description="Re-read config.yml")
     @Require("powertool.reload")
     public void reload(CommandSender sender) {
-        plugin.reload();
-        sendMessage(sender, colorize("`yconfig.yml reloaded."));
+        if (plugin.reload(sender))
+            sendMessage(sender, colorize("`yReloading config.yml..."));
+        else
+            sendMessage(sender, colorize("`rconfig.yml is already being reloaded."));
+    }
+
+    @Command(value="stats", description="Display internal statistics")
+    @Require("powertool.stats")
+    public void stats(CommandSender sender) {
+        WriteBehindQueue writeQueue = plugin.getWriteQueue();
+        sendMessage(sender, colorize("`yWrite queue: `g%d`y pending, `g%d`y flushed"), writeQueue.getQueueDepth(), writeQueue.getFlushCount());
+        sendMessage(sender, colorize("`yFlush latency: `g%.2f`y ms last, `g%.2f`y ms average"), writeQueue.getLastFlushLatency(), writeQueue.getAverageFlushLatency());
+
+        PlayerDaoCache playerDaoCache = plugin.getPlayerDaoCache();
+        sendMessage(sender, colorize("`yPlayer cache: `g%d`y entries, `g%d`y hits, `g%d`y misses"), playerDaoCache.size(), playerDaoCache.getHits(), playerDaoCache.getMisses());
+        sendMessage(sender, colorize("`yBound item IDs: `g%d"), plugin.getItemIdFilter().size());
+
+        long hits = plugin.getPermissionCacheHits();
+        long lookups = hits + plugin.getPermissionCacheMisses();
+        sendMessage(sender, colorize("`yPermission cache: `g%d`y hits, `g%d`y misses (`g%.1f%%`y hit rate)"), hits, lookups - hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+        sendMessage(sender, colorize("`yPlayer grid: `g%d`y player(s)"), plugin.getPlayerGrid().size());
+    }
+
+    @Command(value="migrate", description="Move all player power tools to another storage")
+    @Require("powertool.migrate")
+    public void migrate(CommandSender sender, @Option("-c") Boolean cancel, @Option(value="storage", optional=true) String storage) {
+        if (cancel) {
+            if (!plugin.cancelTransfer())
+                sendMessage(sender, colorize("`yNothing to cancel."));
+            return;
+        }
+
+        if (storage == null) {
+            StorageTransfer transfer = plugin.getTransfer();
+            if (transfer == null)
+                sendMessage(sender, colorize("`yUsing `g%s`y player storage."), plugin.getStorage().toLowerCase());
+            else
+                sendMessage(sender, colorize("`y%s: `g%d`y player(s) so far (`w-c`y to cancel)"), transfer.getDescription(), transfer.getTransferred());
+            return;
+        }
+
+        storage = storage.toLowerCase();
+        if (!PowerToolPlugin.isKnownStorage(storage)) {
+            sendMessage(sender, colorize("`rUnknown storage. Must be one of: yaml, binary, sqlite, journal"));
+            return;
+        }
+        if (storage.equalsIgnoreCase(plugin.getStorage())) {
+            sendMessage(sender, colorize("`rAlready using %s player storage."), storage);
+            return;
+        }
+        if (isYamlOrBinary(storage) && isYamlOrBinary(plugin.getStorage())) {
+            // Same directory, and binary storage converts YAML files by itself
+            sendMessage(sender, colorize("`rYAML and binary storage share files; just change `wstorage`r in config.yml and reload."));
+            return;
+        }
+
+        PowerToolStore target;
+        try {
+            target = plugin.openPlayerStore(storage, plugin.getSettings());
+        }
+        catch (DaoException e) {
+            sendMessage(sender, colorize("`rUnable to open %s player storage: %s"), storage, e.getMessage());
+            return;
+        }
+        StorageTransfer.Migration migration = new StorageTransfer.Migration(plugin, sender, storage, target);
+        if (!plugin.startTransfer(migration)) {
+            target.close();
+            sendTransferBusyMessage(sender);
+            return;
+        }
+        sendMessage(sender, colorize("`yMigrating to `g%s`y player storage..."), storage);
+    }
+
+    private boolean isYamlOrBinary(String storage) {
+        return "yaml".equalsIgnoreCase(storage) || "binary".equalsIgnoreCase(storage);
+    }
+
+    @Command(value="export", description="Write all player power tools to a file")
+    @Require("powertool.migrate")
+    public void export(CommandSender sender, @Option("-f") Boolean force, @Option("file") String fileName) {
+        File file = getTransferFile(fileName);
+        if (file.exists() && !force) {
+            sendMessage(sender, colorize("`r%s already exists (`w-f`r to overwrite)."), file.getName());
+            return;
+        }
+        if (!plugin.startTransfer(new StorageTransfer.Export(plugin, sender, file))) {
+            sendTransferBusyMessage(sender);
+            return;
+        }
+        sendMessage(sender, colorize("`yExporting to `g%s`y..."), file.getName());
+    }
+
+    @Command(value="import", description="Read player power tools from a file")
+    @Require("powertool.migrate")
+    public void importPowerTools(CommandSender sender, @Option("file") String fileName) {
+        File file = getTransferFile(fileName);
+        if (!file.isFile()) {
+            sendMessage(sender, colorize("`rNo such file: %s"), file.getName());
+            return;
+        }
+        if (!plugin.startTransfer(new StorageTransfer.Import(plugin, sender, file))) {
+            sendTransferBusyMessage(sender);
+            return;
+        }
+        sendMessage(sender, colorize("`yImporting from `g%s`y..."), file.getName());
+    }
+
+    // Export files always live in the plugin's data folder
+    private File getTransferFile(String fileName) {
+        return new File(plugin.getDataFolder(), new File(fileName).getName());
+    }
+
+    private void sendTransferBusyMessage(CommandSender sender) {
+        StorageTransfer transfer = plugin.getTransfer();
+        if (transfer != null)
+            sendMessage(sender, colorize("`r%s is still running."), transfer.getDescription());
+        else
+            sendMessage(sender, colorize("`rconfig.yml is being reloaded; try again shortly."));
     }
 
     private Player playerCheck(CommandSender sender) {
@@ -277,38 +396,18 @@ public class SubCommands {
             }
 
             // Check for tokens
-            boolean hasPlayerToken = false;
-            boolean hasLocationToken = false;
-            boolean hasAirToken = false;
-            for (String arg : args) {
-                if (arg.contains(plugin.getPlayerToken())) {
-                    hasPlayerToken = true;
-                }
-                // FIXME gotta be a better way to do this
-                else if (arg.contains(plugin.getXToken()) ||
-                        arg.contains(plugin.getYToken()) ||
-                        arg.contains(plugin.getZToken())) {
-                    hasLocationToken = true;
-                }
-                else if (arg.contains(plugin.getYAirToken())) {
-                    hasLocationToken = true;
-                    hasAirToken = true;
-                }
-            }
-            if (hasPlayerToken && hasLocationToken) {
-                sendMessage(player, colorize("`rCannot use player and coordinate tokens simultaneously!"));
-                return;
-            }
+            CommandTemplate template = CommandTemplate.compile(delimitedString(" ", (Object[])args), plugin.getSettings());
 
             PowerTool pt = plugin.getPowerTool(player, itemStack, false);
-            if (pt == null) {
-                // Only check limit if we have to create a new one
-                if (plugin.isOverLimit(player)) {
+            if (pt == null || (!pt.isGlobal() && pt.getCommand(action) == null)) {
+                // Only check limits if we're adding something
+                if (plugin.isOverLimit(player, pt, action)) {
                     sendMessage(player, colorize("`rYou have reached your power tool limit."));
                     return;
                 }
                 // Create a brand new power tool
-                pt = plugin.getPowerTool(player, itemStack, true);
+                if (pt == null)
+                    pt = plugin.getPowerTool(player, itemStack, true);
             }
 
             // Set the command
@@ -317,7 +416,7 @@ public class SubCommands {
                 sendMessage(player, colorize(MODIFY_GLOBAL_ERROR_MSG));
                 return;
             }
-            pt.setCommand(action, delimitedString(" ", (Object[])args), hasPlayerToken, hasLocationToken, hasAirToken);
+            pt.setCommand(action, template);
             sendMessage(player, colorize("`yPower tool (`Y%s`y) set."), action.getDisplayName());
             
             plugin.savePersistentPowerTool(player, itemStack, pt);
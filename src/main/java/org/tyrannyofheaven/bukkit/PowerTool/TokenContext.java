@@ -0,0 +1,309 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+// Everything known about a single power tool execution. Targets are looked
+// up the first time a token asks for them and then remembered, as are token
+// values. Main thread only, unless detached: a detached context is built
+// from a finished block trace and only knows the world, the item type and
+// the target location, but may be used on any thread.
+public class TokenContext {
+
+    private final PowerToolPlugin plugin;
+
+    private final Player player;
+
+    private final ItemStack item;
+
+    // The block or entity the event was about, if any
+    private final Block clickedBlock;
+
+    private final Entity clickedEntity;
+
+    private final String worldName;
+
+    private final Material itemType;
+
+    // Only set if detached
+    private final BlockSource blockSource;
+
+    // Targets the command is known to need
+    private boolean expectPlayer;
+
+    private boolean expectBlock;
+
+    private SightTrace sightTrace;
+
+    private boolean targetLocationResolved;
+
+    private boolean targetLocationFound;
+
+    private int targetX;
+
+    private int targetY;
+
+    private int targetZ;
+
+    private Material targetType;
+
+    private boolean airYResolved;
+
+    private int airY;
+
+    private boolean targetBlockResolved;
+
+    private Block targetBlock;
+
+    private boolean airBlockResolved;
+
+    private Block airBlock;
+
+    private boolean targetPlayerResolved;
+
+    private Player targetPlayer;
+
+    private boolean targetEntityResolved;
+
+    private Entity targetEntity;
+
+    // Values already computed, by provider. Commands only use a handful of
+    // distinct tokens, so a linear search is fine.
+    private TokenProvider[] providers = new TokenProvider[4];
+
+    private String[] values = new String[4];
+
+    private int valueCount;
+
+    TokenContext(PowerToolPlugin plugin, Player player, ItemStack item, Block clickedBlock, Entity clickedEntity) {
+        this.plugin = plugin;
+        this.player = player;
+        this.item = item;
+        this.clickedBlock = clickedBlock;
+        this.clickedEntity = clickedEntity;
+        worldName = player.getWorld().getName();
+        itemType = item.getType();
+        blockSource = null;
+    }
+
+    // Detached. blockSource must be what sightTrace traced.
+    TokenContext(PowerToolPlugin plugin, String worldName, Material itemType, SightTrace sightTrace, BlockSource blockSource) {
+        this.plugin = plugin;
+        player = null;
+        item = null;
+        clickedBlock = null;
+        clickedEntity = null;
+        this.worldName = worldName;
+        this.itemType = itemType;
+        this.sightTrace = sightTrace;
+        this.blockSource = blockSource;
+    }
+
+    private void checkAttached() {
+        if (blockSource != null)
+            throw new IllegalStateException("Not available from a detached context");
+    }
+
+    void expectTargets(boolean player, boolean block) {
+        expectPlayer |= player;
+        expectBlock |= block;
+    }
+
+    // Traces the line of sight for the given targets, along with any others
+    // the command is expected to need. Only traces again if something new
+    // is asked for.
+    private SightTrace getSightTrace(boolean wantBlock, boolean wantPlayer) {
+        if (sightTrace == null || (wantBlock && !sightTrace.hasBlock()) || (wantPlayer && !sightTrace.hasPlayer())) {
+            sightTrace = plugin.traceSight(player,
+                    wantBlock || (expectBlock && clickedBlock == null),
+                    wantPlayer || (expectPlayer && clickedEntity == null));
+        }
+        return sightTrace;
+    }
+
+    public Player getPlayer() {
+        checkAttached();
+        return player;
+    }
+
+    public ItemStack getItem() {
+        checkAttached();
+        return item;
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public Material getItemType() {
+        return itemType;
+    }
+
+    private void resolveTargetLocation() {
+        if (targetLocationResolved) return;
+        targetLocationResolved = true;
+        if (blockSource != null) {
+            if (sightTrace.isBlockFound()) {
+                targetLocationFound = true;
+                targetX = sightTrace.getBlockX();
+                targetY = sightTrace.getBlockY();
+                targetZ = sightTrace.getBlockZ();
+                targetType = Material.getMaterial(sightTrace.getBlockTypeId());
+            }
+        }
+        else {
+            Block block = getTargetBlock();
+            if (block != null) {
+                targetLocationFound = true;
+                targetX = block.getX();
+                targetY = block.getY();
+                targetZ = block.getZ();
+                targetType = block.getType();
+            }
+        }
+    }
+
+    // Whether there is a target block. The methods below are only
+    // meaningful if there is.
+    public boolean hasTargetLocation() {
+        resolveTargetLocation();
+        return targetLocationFound;
+    }
+
+    public int getTargetX() {
+        resolveTargetLocation();
+        return targetX;
+    }
+
+    public int getTargetY() {
+        resolveTargetLocation();
+        return targetY;
+    }
+
+    public int getTargetZ() {
+        resolveTargetLocation();
+        return targetZ;
+    }
+
+    public Material getTargetType() {
+        resolveTargetLocation();
+        return targetType;
+    }
+
+    // Y-coordinate of the air block above the target block (see YAirMode),
+    // or -1 if there is none
+    public int getAirY() {
+        if (!airYResolved) {
+            airYResolved = true;
+            airY = -1;
+            if (hasTargetLocation()) {
+                BlockSource source = blockSource != null ? blockSource : new WorldBlockSource(player.getWorld());
+                airY = ColumnScan.findAirY(source, targetX, targetY, targetZ, plugin.getSettings().getYAirMode());
+            }
+        }
+        return airY;
+    }
+
+    // The clicked block, or the first non-empty block in the player's line of
+    // sight. null if there isn't one.
+    public Block getTargetBlock() {
+        checkAttached();
+        if (!targetBlockResolved) {
+            targetBlockResolved = true;
+            Block block = clickedBlock != null ? clickedBlock : getSightTrace(true, false).getBlock();
+
+            // Not sure when block will be AIR (since we explicitly check
+            // above), but doesn't hurt to check!
+            if (block != null && !block.isEmpty())
+                targetBlock = block;
+        }
+        return targetBlock;
+    }
+
+    // The air block above the target block (see YAirMode)
+    public Block getAirBlock() {
+        checkAttached();
+        if (!airBlockResolved) {
+            airBlockResolved = true;
+            int y = getAirY();
+            if (y >= 0)
+                airBlock = player.getWorld().getBlockAt(targetX, y, targetZ);
+        }
+        return airBlock;
+    }
+
+    // The clicked player, or the player in the crosshairs (unless hidden by
+    // a solid block). null if there is no player.
+    public Player getTargetPlayer() {
+        checkAttached();
+        if (!targetPlayerResolved) {
+            targetPlayerResolved = true;
+            if (clickedEntity != null)
+                targetPlayer = clickedEntity instanceof Player ? (Player)clickedEntity : null;
+            else
+                targetPlayer = getSightTrace(false, true).getPlayer();
+            if (targetPlayer != null)
+                debug(plugin, "%s targeted %s", player.getName(), targetPlayer.getName());
+            else
+                debug(plugin, "No player target");
+        }
+        return targetPlayer;
+    }
+
+    // The clicked entity, or the living entity in the crosshairs. null if
+    // there is none.
+    public Entity getTargetEntity() {
+        checkAttached();
+        if (!targetEntityResolved) {
+            targetEntityResolved = true;
+            if (clickedEntity != null)
+                targetEntity = clickedEntity;
+            else
+                targetEntity = plugin.findEntityInSight(player, LivingEntity.class);
+        }
+        return targetEntity;
+    }
+
+    // Returns the value of the given token, computing it only once
+    String getValue(TokenProvider provider) {
+        for (int i = 0; i < valueCount; i++) {
+            if (providers[i] == provider)
+                return values[i];
+        }
+        String value = provider.getValue(this);
+        if (valueCount == providers.length) {
+            TokenProvider[] newProviders = new TokenProvider[valueCount * 2];
+            String[] newValues = new String[valueCount * 2];
+            System.arraycopy(providers, 0, newProviders, 0, valueCount);
+            System.arraycopy(values, 0, newValues, 0, valueCount);
+            providers = newProviders;
+            values = newValues;
+        }
+        providers[valueCount] = provider;
+        values[valueCount] = value;
+        valueCount++;
+        return value;
+    }
+
+}
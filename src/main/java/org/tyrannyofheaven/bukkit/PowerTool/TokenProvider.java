@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+// Supplies the value of a single token in bound commands. Values are
+// computed only when a command that references the token is executed.
+// Anything expensive (tracing, entity scans) should go through the
+// TokenContext so it's done at most once per execution, however many tokens
+// need it.
+public interface TokenProvider {
+
+    // The token as it appears in commands, e.g. "%p"
+    public String getToken();
+
+    // What the value depends on. Player and block targets are found by the
+    // same trace, so a command using both only traces once.
+    public TokenTarget getTarget();
+
+    // Returns the value to substitute, or null if there is none (in which
+    // case the command isn't executed)
+    public String getValue(TokenContext context);
+
+    public static enum TokenTarget {
+        NONE, PLAYER, BLOCK, ENTITY;
+    }
+
+}
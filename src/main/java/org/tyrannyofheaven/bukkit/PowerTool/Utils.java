@@ -130,6 +130,54 @@ public class Utils {
         return true;
     }
 
+    // Slab test of the ray origin + t * direction (t >= 0) against the box.
+    // Returns the t at which the ray enters the box (0 if the origin is
+    // inside), or -1 if it misses. Boxes are closed, as in hitBoundingBox().
+    // Doesn't allocate.
+    public static double rayBoxIntersect(double ox, double oy, double oz, double dx, double dy, double dz,
+            double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        double tNear = 0.0;
+        double tFar = Double.POSITIVE_INFINITY;
+
+        if (dx == 0.0) {
+            if (ox < minX || ox > maxX) return -1.0;
+        }
+        else {
+            double t1 = (minX - ox) / dx;
+            double t2 = (maxX - ox) / dx;
+            if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+            if (t1 > tNear) tNear = t1;
+            if (t2 < tFar) tFar = t2;
+            if (tNear > tFar) return -1.0;
+        }
+
+        if (dy == 0.0) {
+            if (oy < minY || oy > maxY) return -1.0;
+        }
+        else {
+            double t1 = (minY - oy) / dy;
+            double t2 = (maxY - oy) / dy;
+            if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+            if (t1 > tNear) tNear = t1;
+            if (t2 < tFar) tFar = t2;
+            if (tNear > tFar) return -1.0;
+        }
+
+        if (dz == 0.0) {
+            if (oz < minZ || oz > maxZ) return -1.0;
+        }
+        else {
+            double t1 = (minZ - oz) / dz;
+            double t2 = (maxZ - oz) / dz;
+            if (t1 > t2) { double t = t1; t1 = t2; t2 = t; }
+            if (t1 > tNear) tNear = t1;
+            if (t2 < tFar) tFar = t2;
+            if (tNear > tFar) return -1.0;
+        }
+
+        return tNear;
+    }
+
     private static enum Quadrant {
         LEFT, MIDDLE, RIGHT;
     }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import org.bukkit.World;
+
+// Reads blocks straight from the world. Main thread only.
+final class WorldBlockSource implements BlockSource {
+
+    private final World world;
+
+    WorldBlockSource(World world) {
+        this.world = world;
+    }
+
+    @Override
+    public int getTypeId(int x, int y, int z) {
+        return world.getBlockTypeIdAt(x, y, z);
+    }
+
+    @Override
+    public int getMaxHeight() {
+        return world.getMaxHeight();
+    }
+
+    // Copying a chunk just to look at one column costs more than reading
+    // the blocks one at a time
+    @Override
+    public boolean isSectionEmpty(int x, int sectionY, int z) {
+        return false;
+    }
+
+    @Override
+    public int getHeightmapY(int x, int z) {
+        return world.getHighestBlockYAt(x, z);
+    }
+
+}
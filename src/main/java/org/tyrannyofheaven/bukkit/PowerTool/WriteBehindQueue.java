@@ -0,0 +1,299 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolDao;
+import org.tyrannyofheaven.bukkit.PowerTool.dao.PowerToolStore;
+
+// Write-behind queue for player power tools. Edits are merged per player
+// and written out by a single background thread so the main thread never
+// touches the disk when a bind changes.
+class WriteBehindQueue {
+
+    private static final long SHUTDOWN_WAIT = 5000L; // ms
+
+    private final PowerToolPlugin plugin;
+
+    // Pending changes, keyed by player name. Guarded by itself.
+    private final Map<String, PendingWrite> pendingWrites = new HashMap<String, PendingWrite>();
+
+    // Players with pending changes, in the order they became dirty
+    private final BlockingQueue<String> dirtyPlayers;
+
+    // Names currently in dirtyPlayers. A name may stay queued after its
+    // changes are flushed by someone else, so this keeps it from being
+    // queued twice. Guarded by pendingWrites.
+    private final Set<String> queuedPlayers = new HashSet<String>();
+
+    // Held while actually writing, so a flush on one thread never races
+    // a flush on another
+    private final Object ioLock = new Object();
+
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private final AtomicLong totalFlushTime = new AtomicLong();
+
+    private volatile long lastFlushTime;
+
+    // If set, all writes also go here (e.g. during a storage migration).
+    // Guarded by ioLock.
+    private PowerToolStore mirror;
+
+    private volatile boolean running;
+
+    private Thread writerThread;
+
+    WriteBehindQueue(PowerToolPlugin plugin, int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be positive");
+        this.plugin = plugin;
+        dirtyPlayers = new ArrayBlockingQueue<String>(maxSize);
+    }
+
+    void start() {
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    String playerName;
+                    try {
+                        playerName = dirtyPlayers.take();
+                    }
+                    catch (InterruptedException e) {
+                        break;
+                    }
+                    synchronized (pendingWrites) {
+                        queuedPlayers.remove(playerName);
+                    }
+                    flush(playerName);
+                }
+            }
+        }, "PowerTool-Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            try {
+                writerThread.join(SHUTDOWN_WAIT);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+
+        // Whatever is left gets written by the caller
+        flushAll();
+    }
+
+    void save(String playerName, ItemKey key, PowerTool powerTool) {
+        // Snapshot, since the live PowerTool may be modified before we get to it
+        enqueue(playerName, key, powerTool.copy(), false);
+    }
+
+    void remove(String playerName, ItemKey key) {
+        enqueue(playerName, key, null, false);
+    }
+
+    void clear(String playerName) {
+        enqueue(playerName, null, null, true);
+    }
+
+    private void enqueue(String playerName, ItemKey key, PowerTool powerTool, boolean clear) {
+        boolean overflow = false;
+        synchronized (pendingWrites) {
+            PendingWrite pw = pendingWrites.get(playerName);
+            if (pw == null) {
+                pw = new PendingWrite();
+                pendingWrites.put(playerName, pw);
+                // Already queued (and not yet taken), so the writer will
+                // get to it
+                if (!queuedPlayers.contains(playerName)) {
+                    if (dirtyPlayers.offer(playerName))
+                        queuedPlayers.add(playerName);
+                    else
+                        overflow = true;
+                }
+            }
+            if (clear)
+                pw.clear();
+            else
+                pw.getChanges().put(key, powerTool);
+        }
+
+        // Queue is full, so write it out ourselves
+        if (overflow) {
+            debug(plugin, "Write queue full; flushing %s synchronously", playerName);
+            flush(playerName);
+        }
+    }
+
+    // Writes out any pending changes for the given player. Blocks if the
+    // writer thread is currently writing.
+    void flush(String playerName) {
+        synchronized (ioLock) {
+            PendingWrite pw;
+            synchronized (pendingWrites) {
+                pw = pendingWrites.remove(playerName);
+            }
+            if (pw != null)
+                write(playerName, pw);
+        }
+    }
+
+    void flushAll() {
+        synchronized (ioLock) {
+            Map<String, PendingWrite> toWrite;
+            synchronized (pendingWrites) {
+                toWrite = new LinkedHashMap<String, PendingWrite>(pendingWrites);
+                pendingWrites.clear();
+                dirtyPlayers.clear();
+                queuedPlayers.clear();
+            }
+            for (Map.Entry<String, PendingWrite> me : toWrite.entrySet()) {
+                write(me.getKey(), me.getValue());
+            }
+        }
+    }
+
+    void setMirror(PowerToolStore mirror) {
+        synchronized (ioLock) {
+            this.mirror = mirror;
+        }
+    }
+
+    // Runs the given task with all writes held off. Flushes may be called
+    // from within the task.
+    void runExclusive(Runnable task) {
+        synchronized (ioLock) {
+            task.run();
+        }
+    }
+
+    private void write(String playerName, PendingWrite pw) {
+        long start = System.nanoTime();
+        try {
+            if (pw.isClear()) {
+                plugin.deletePersistentPowerTools(playerName);
+            }
+            if (!pw.getChanges().isEmpty()) {
+                PowerToolDao dao = plugin.getPlayerDao(playerName);
+                for (Map.Entry<ItemKey, PowerTool> me : pw.getChanges().entrySet()) {
+                    if (me.getValue() == null)
+                        dao.removePowerTool(me.getKey());
+                    else
+                        dao.savePowerTool(me.getKey(), me.getValue());
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            error(plugin, "Error saving power tools for %s", playerName, e);
+        }
+        finally {
+            long elapsed = System.nanoTime() - start;
+            lastFlushTime = elapsed;
+            totalFlushTime.addAndGet(elapsed);
+            flushCount.incrementAndGet();
+        }
+
+        if (mirror != null)
+            writeMirror(playerName, pw);
+    }
+
+    private void writeMirror(String playerName, PendingWrite pw) {
+        try {
+            if (pw.isClear()) {
+                mirror.clearPowerTools(playerName);
+            }
+            if (!pw.getChanges().isEmpty()) {
+                PowerToolDao dao = mirror.getPlayerDao(playerName);
+                for (Map.Entry<ItemKey, PowerTool> me : pw.getChanges().entrySet()) {
+                    if (me.getValue() == null)
+                        dao.removePowerTool(me.getKey());
+                    else
+                        dao.savePowerTool(me.getKey(), me.getValue());
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            error(plugin, "Error mirroring power tools for %s", playerName, e);
+        }
+    }
+
+    int getQueueDepth() {
+        synchronized (pendingWrites) {
+            return pendingWrites.size();
+        }
+    }
+
+    long getFlushCount() {
+        return flushCount.get();
+    }
+
+    // In milliseconds
+    double getLastFlushLatency() {
+        return lastFlushTime / (double)TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    // In milliseconds
+    double getAverageFlushLatency() {
+        long count = flushCount.get();
+        if (count == 0) return 0.0;
+        return totalFlushTime.get() / (double)count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static class PendingWrite {
+
+        private boolean clear;
+
+        // null values mean removal
+        private final Map<ItemKey, PowerTool> changes = new LinkedHashMap<ItemKey, PowerTool>();
+
+        public boolean isClear() {
+            return clear;
+        }
+
+        public void clear() {
+            // Anything queued before a clear is moot
+            clear = true;
+            changes.clear();
+        }
+
+        public Map<ItemKey, PowerTool> getChanges() {
+            return changes;
+        }
+
+    }
+
+}
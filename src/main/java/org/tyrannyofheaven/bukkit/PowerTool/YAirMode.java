@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 ZerothAngel <zerothangel@tyrannyofheaven.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+// What the %Y token means
+public enum YAirMode {
+
+    // The first air block above the target block
+    FIRST_AIR("first-air"),
+
+    // The first air block above the target block that has air above it too
+    TWO_HIGH("two-high"),
+
+    // The top of the target block's column, per the world's heightmap
+    SURFACE("surface");
+
+    private final String displayName;
+
+    private YAirMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    // Returns null if there is no such mode
+    public static YAirMode fromDisplayName(String displayName) {
+        for (YAirMode mode : values()) {
+            if (mode.getDisplayName().equalsIgnoreCase(displayName))
+                return mode;
+        }
+        return null;
+    }
+
+}
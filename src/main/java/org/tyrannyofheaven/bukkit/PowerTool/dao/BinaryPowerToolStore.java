@@ -0,0 +1,229 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.warn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.PowerTool.ItemKey;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolPlugin;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+// One compact binary snapshot per player. A player's YAML file may
+// optionally be kept alongside as a human-editable export. If the YAML
+// file is newer than the snapshot (e.g. someone edited it), it is converted
+// automatically on the next load.
+public class BinaryPowerToolStore implements PowerToolStore {
+
+    private final PowerToolPlugin plugin;
+
+    private final File directory;
+
+    private final PowerToolSettings settings;
+
+    private final boolean exportYaml;
+
+    public BinaryPowerToolStore(PowerToolPlugin plugin, File directory, PowerToolSettings settings) {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.settings = settings;
+        this.exportYaml = settings.isExportYaml();
+
+        // Nothing is being written yet, so any temporary files are left
+        // over from a crash
+        for (String playerName : DaoUtils.listPlayerNames(directory, ".dat.tmp", new HashSet<String>()))
+            recoverSnapshot(getSnapshotFile(playerName));
+    }
+
+    // Deals with a snapshot write that was interrupted. If the snapshot is
+    // still there, the temporary file may be incomplete and is discarded.
+    // Otherwise it was completely written before the snapshot was deleted,
+    // unless this was the player's first snapshot, so it's kept if it
+    // reads back.
+    private void recoverSnapshot(File snapshotFile) {
+        File tempFile = DaoUtils.getTempFile(snapshotFile);
+        if (!snapshotFile.exists()) {
+            try {
+                readSnapshot(tempFile);
+                warn(plugin, "Recovering interrupted snapshot %s", tempFile);
+                if (tempFile.renameTo(snapshotFile))
+                    return;
+                error(plugin, "Unable to rename %s to %s", tempFile, snapshotFile);
+                return; // Leave it for next time
+            }
+            catch (IOException e) {
+                warn(plugin, "Discarding incomplete snapshot %s", tempFile);
+            }
+        }
+        if (!tempFile.delete())
+            error(plugin, "Unable to delete %s", tempFile);
+    }
+
+    private void ensureDirectory() {
+        if (!directory.exists() && !directory.mkdirs())
+            throw new DaoException("Unable to create player configuration directory: " + directory, null);
+    }
+
+    private File getSnapshotFile(String playerName) {
+        return new File(directory, playerName + ".dat");
+    }
+
+    private File getYamlFile(String playerName) {
+        return new File(directory, playerName + ".yml");
+    }
+
+    @Override
+    public PowerToolDao getPlayerDao(String playerName) {
+        ensureDirectory();
+        return new PlayerDao(playerName);
+    }
+
+    @Override
+    public boolean hasPowerTools(String playerName) {
+        return getSnapshotFile(playerName).exists() || getYamlFile(playerName).exists();
+    }
+
+    @Override
+    public Set<String> getPlayerNames() {
+        Set<String> result = new HashSet<String>();
+        DaoUtils.listPlayerNames(directory, ".dat", result);
+        DaoUtils.listPlayerNames(directory, ".yml", result);
+        return result;
+    }
+
+    @Override
+    public void clearPowerTools(String playerName) {
+        for (File file : new File[] { getSnapshotFile(playerName), getYamlFile(playerName) }) {
+            if (file.exists() && !file.delete()) {
+                error(plugin, "Unable to delete player configuration file: %s", file);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do
+    }
+
+    private Map<ItemKey, PowerTool> readSnapshot(File file) throws IOException {
+        // Slurp it all in with a single read
+        byte[] bytes = new byte[(int)file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            new DataInputStream(fis).readFully(bytes);
+        }
+        finally {
+            fis.close();
+        }
+        return PowerToolCodec.readPowerTools(new DataInputStream(new ByteArrayInputStream(bytes)), settings);
+    }
+
+    private void writeSnapshot(File file, Map<ItemKey, PowerTool> powerTools) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PowerToolCodec.writePowerTools(new DataOutputStream(bytes), powerTools);
+
+        File tempFile = DaoUtils.getTempFile(file);
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            bytes.writeTo(fos);
+            fos.getFD().sync(); // Must be on disk before it replaces the old one
+        }
+        finally {
+            fos.close();
+        }
+        DaoUtils.replaceFile(tempFile, file);
+    }
+
+    // A single player's snapshot (and optional YAML export)
+    private class PlayerDao implements PowerToolDao {
+
+        private final File snapshotFile;
+
+        private final File yamlFile;
+
+        private YamlPowerToolDao yamlDao;
+
+        // Current contents, once loaded
+        private Map<ItemKey, PowerTool> powerTools;
+
+        private PlayerDao(String playerName) {
+            snapshotFile = getSnapshotFile(playerName);
+            yamlFile = getYamlFile(playerName);
+        }
+
+        private YamlPowerToolDao getYamlDao() {
+            if (yamlDao == null)
+                yamlDao = new YamlPowerToolDao(plugin, yamlFile, settings);
+            return yamlDao;
+        }
+
+        private Map<ItemKey, PowerTool> getPowerTools() {
+            if (powerTools == null) {
+                try {
+                    if (yamlFile.exists() && (!snapshotFile.exists() || yamlFile.lastModified() > snapshotFile.lastModified())) {
+                        // Newer YAML, convert it
+                        debug(plugin, "Converting %s", yamlFile);
+                        yamlDao = null; // re-read
+                        powerTools = getYamlDao().loadPowerTools(false);
+                        writeSnapshot(snapshotFile, powerTools);
+                    }
+                    else if (snapshotFile.exists()) {
+                        powerTools = readSnapshot(snapshotFile);
+                    }
+                    else
+                        powerTools = new HashMap<ItemKey, PowerTool>();
+                }
+                catch (IOException e) {
+                    throw new DaoException("Error reading " + snapshotFile, e);
+                }
+            }
+            return powerTools;
+        }
+
+        private void save() {
+            try {
+                writeSnapshot(snapshotFile, powerTools);
+            }
+            catch (IOException e) {
+                throw new DaoException("Error writing " + snapshotFile, e);
+            }
+        }
+
+        @Override
+        public synchronized void savePowerTool(ItemKey key, PowerTool powerTool) {
+            getPowerTools().put(key, powerTool.copy());
+            // Export first so the snapshot always ends up newer
+            if (exportYaml)
+                getYamlDao().savePowerTool(key, powerTool);
+            save();
+        }
+
+        @Override
+        public synchronized Map<ItemKey, PowerTool> loadPowerTools(boolean global) {
+            return PowerToolCodec.copyPowerTools(getPowerTools(), new HashMap<ItemKey, PowerTool>());
+        }
+
+        @Override
+        public synchronized void removePowerTool(ItemKey key) {
+            if (getPowerTools().remove(key) == null) return;
+            if (exportYaml)
+                getYamlDao().removePowerTool(key);
+            save();
+        }
+
+    }
+
+}
@@ -0,0 +1,15 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+public class DaoException extends RuntimeException {
+
+    private static final long serialVersionUID = -2373480366519212117L;
+
+    public DaoException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public DaoException(Throwable cause) {
+        super(cause);
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.PowerTool.CommandTemplate;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolAction;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+final class DaoUtils {
+
+    private DaoUtils() {
+        throw new AssertionError(); // Don't instantiate me!
+    }
+
+    // Sets the command after compiling it
+    static void setCommand(PowerToolSettings settings, PowerTool pt, PowerToolAction action, String command) {
+        pt.setCommand(action, CommandTemplate.compile(command, settings));
+    }
+
+    // Replaces target with tempFile, which must already be complete and
+    // synced. Renaming over the target is atomic where the platform allows
+    // it. Otherwise the target is deleted first, and a crash in between
+    // leaves only tempFile (see getTempFile()).
+    static void replaceFile(File tempFile, File target) throws IOException {
+        if (tempFile.renameTo(target)) return;
+        if (target.exists() && !target.delete())
+            throw new IOException("Unable to delete " + target);
+        if (!tempFile.renameTo(target))
+            throw new IOException("Unable to rename " + tempFile + " to " + target);
+    }
+
+    // Where replaceFile()'s temporary file for the given target goes
+    static File getTempFile(File target) {
+        return new File(target.getParentFile(), target.getName() + ".tmp");
+    }
+
+    // Names of players with a file with the given extension
+    static Set<String> listPlayerNames(File directory, String extension, Set<String> result) {
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(extension) && name.length() > extension.length())
+                    result.add(name.substring(0, name.length() - extension.length()));
+            }
+        }
+        return result;
+    }
+
+    static PowerToolAction actionFromDisplayName(String displayName) {
+        for (PowerToolAction action : PowerToolAction.values()) {
+            if (action.getDisplayName().equals(displayName))
+                return action;
+        }
+        return null;
+    }
+
+}
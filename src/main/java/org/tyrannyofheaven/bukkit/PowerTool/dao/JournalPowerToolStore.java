@@ -0,0 +1,418 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.debug;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.warn;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.tyrannyofheaven.bukkit.PowerTool.ItemKey;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolPlugin;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+// Keeps all player power tools in memory. Every change is appended to a
+// journal as a checksummed binary record, and the journal is periodically
+// compacted into a snapshot by a background thread.
+//
+// Record layout: payload length (int), CRC32 of payload (int), payload.
+public class JournalPowerToolStore implements PowerToolStore {
+
+    private static final byte OP_SAVE = 1;
+
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte OP_CLEAR = 3;
+
+    // Anything larger is assumed to be garbage
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final long COMPACT_INTERVAL = 5L; // minutes
+
+    // Don't bother compacting journals smaller than this
+    private static final long COMPACT_THRESHOLD = 64 * 1024L;
+
+    private final PowerToolPlugin plugin;
+
+    private final PowerToolSettings settings;
+
+    private final boolean useDisplayNames;
+
+    private final File snapshotFile;
+
+    private final File journalFile;
+
+    private final Map<String, Map<ItemKey, PowerTool>> powerTools = new HashMap<String, Map<ItemKey, PowerTool>>();
+
+    private final ScheduledExecutorService compactor;
+
+    private RandomAccessFile journal;
+
+    public JournalPowerToolStore(PowerToolPlugin plugin, File directory, PowerToolSettings settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+        this.useDisplayNames = settings.isUseDisplayNames();
+
+        if (!directory.exists() && !directory.mkdirs())
+            throw new DaoException("Unable to create directory " + directory, null);
+        snapshotFile = new File(directory, "players.snapshot");
+        journalFile = new File(directory, "players.journal");
+
+        try {
+            File tempFile = DaoUtils.getTempFile(snapshotFile);
+            if (tempFile.exists()) {
+                if (snapshotFile.exists()) {
+                    // Compaction died while writing it, and the journal
+                    // still has everything
+                    if (!tempFile.delete())
+                        warn(plugin, "Unable to delete %s", tempFile);
+                }
+                else {
+                    // Compaction died after deleting the old snapshot. The
+                    // new one is complete (or, if this was the first
+                    // snapshot, the journal still has everything).
+                    warn(plugin, "Recovering interrupted snapshot %s", tempFile);
+                    if (!tempFile.renameTo(snapshotFile))
+                        throw new IOException("Unable to rename " + tempFile + " to " + snapshotFile);
+                }
+            }
+
+            if (snapshotFile.exists())
+                replay(snapshotFile);
+            long good = 0L;
+            if (journalFile.exists())
+                good = replay(journalFile);
+
+            journal = new RandomAccessFile(journalFile, "rw");
+            if (journal.length() != good) {
+                // Torn write at the end, most likely
+                warn(plugin, "Discarding %d corrupt byte(s) at end of %s", journal.length() - good, journalFile);
+                journal.setLength(good);
+            }
+            journal.seek(good);
+        }
+        catch (IOException e) {
+            throw new DaoException("Unable to open journal " + journalFile, e);
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("PowerTool-Compactor").setDaemon(true).build());
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact(false);
+                }
+                catch (DaoException e) {
+                    error(JournalPowerToolStore.this.plugin, "Error compacting journal", e);
+                }
+            }
+        }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    // Applies all valid records in the given file. Returns the offset just
+    // past the last valid record.
+    private long replay(File file) throws IOException {
+        ByteBuffer buffer;
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            buffer = ByteBuffer.allocate((int)channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+                ;
+            buffer.flip();
+        }
+        finally {
+            fis.close();
+        }
+
+        CRC32 crc = new CRC32();
+        int count = 0;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length < 0 || length > MAX_RECORD_SIZE || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int)crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+
+            apply(new DataInputStream(new ByteArrayInputStream(payload)));
+            count++;
+        }
+        debug(plugin, "Replayed %d record(s) from %s", count, file);
+        return buffer.position();
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        String playerName = in.readUTF();
+        if (op == OP_CLEAR) {
+            powerTools.remove(playerName);
+            return;
+        }
+
+        ItemKey key = PowerToolCodec.readKey(in, useDisplayNames);
+        if (op == OP_SAVE) {
+            PowerTool pt = PowerToolCodec.readPowerTool(in, settings);
+            if (pt != null)
+                getPowerTools(playerName, true).put(key, pt);
+            else
+                warn(plugin, "Power tool '%s' for %s has no usable commands; ignored", key, playerName);
+        }
+        else if (op == OP_REMOVE) {
+            Map<ItemKey, PowerTool> playerPowerTools = getPowerTools(playerName, false);
+            if (playerPowerTools != null) {
+                playerPowerTools.remove(key);
+                if (playerPowerTools.isEmpty())
+                    powerTools.remove(playerName);
+            }
+        }
+    }
+
+    private Map<ItemKey, PowerTool> getPowerTools(String playerName, boolean create) {
+        Map<ItemKey, PowerTool> playerPowerTools = powerTools.get(playerName);
+        if (playerPowerTools == null && create) {
+            playerPowerTools = new HashMap<ItemKey, PowerTool>();
+            powerTools.put(playerName, playerPowerTools);
+        }
+        return playerPowerTools;
+    }
+
+    private static void writeRecord(DataOutputStream out, ByteArrayOutputStream payload, CRC32 crc) throws IOException {
+        byte[] bytes = payload.toByteArray();
+        crc.reset();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeInt((int)crc.getValue());
+        out.write(bytes);
+    }
+
+    private void append(ByteArrayOutputStream payload) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + RECORD_HEADER_SIZE);
+        long start = -1L;
+        try {
+            writeRecord(new DataOutputStream(record), payload, new CRC32());
+            start = journal.length();
+            journal.write(record.toByteArray());
+            journal.getFD().sync();
+        }
+        catch (IOException e) {
+            // Don't leave a partial record for later records to follow.
+            // Replay would stop there and drop them all.
+            if (start >= 0L) {
+                try {
+                    journal.setLength(start);
+                    journal.seek(start);
+                }
+                catch (IOException e2) {
+                    error(plugin, "Unable to roll back partial record in %s", journalFile, e2);
+                }
+            }
+            throw new DaoException("Error writing to journal " + journalFile, e);
+        }
+    }
+
+    private static DataOutputStream beginRecord(ByteArrayOutputStream payload, byte op, String playerName) throws IOException {
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(op);
+        out.writeUTF(playerName);
+        return out;
+    }
+
+    @Override
+    public PowerToolDao getPlayerDao(String playerName) {
+        return new PlayerDao(playerName);
+    }
+
+    @Override
+    public synchronized boolean hasPowerTools(String playerName) {
+        return powerTools.containsKey(playerName);
+    }
+
+    @Override
+    public synchronized Set<String> getPlayerNames() {
+        return new HashSet<String>(powerTools.keySet());
+    }
+
+    @Override
+    public synchronized void clearPowerTools(String playerName) {
+        if (!powerTools.containsKey(playerName)) return;
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            beginRecord(payload, OP_CLEAR, playerName);
+        }
+        catch (IOException e) {
+            throw new DaoException(e); // Shouldn't happen
+        }
+        append(payload);
+        powerTools.remove(playerName);
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(5L, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            try {
+                compact(true);
+            }
+            finally {
+                try {
+                    journal.close();
+                }
+                catch (IOException e) {
+                    throw new DaoException(e);
+                }
+            }
+        }
+    }
+
+    // Rewrites everything into a new snapshot and truncates the journal.
+    // The journal is only truncated once the new snapshot is in place, and
+    // replaying it over the new snapshot is harmless. If the snapshot can't
+    // be renamed over atomically, a crash after the old one is deleted
+    // leaves the new one as a .tmp, which is recovered on open.
+    synchronized void compact(boolean force) {
+        try {
+            long journalSize = journal.length();
+            if (journalSize == 0L || (!force && journalSize < COMPACT_THRESHOLD)) return;
+
+            File tempFile = DaoUtils.getTempFile(snapshotFile);
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                CRC32 crc = new CRC32();
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                for (Map.Entry<String, Map<ItemKey, PowerTool>> me : powerTools.entrySet()) {
+                    for (Map.Entry<ItemKey, PowerTool> pt : me.getValue().entrySet()) {
+                        payload.reset();
+                        DataOutputStream pout = beginRecord(payload, OP_SAVE, me.getKey());
+                        PowerToolCodec.writeKey(pout, pt.getKey());
+                        PowerToolCodec.writePowerTool(pout, pt.getValue());
+                        writeRecord(out, payload, crc);
+                    }
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+
+            DaoUtils.replaceFile(tempFile, snapshotFile);
+
+            journal.setLength(0L);
+            journal.seek(0L);
+            debug(plugin, "Compacted %d byte journal", journalSize);
+        }
+        catch (IOException e) {
+            throw new DaoException("Error compacting journal " + journalFile, e);
+        }
+    }
+
+    private synchronized Map<ItemKey, PowerTool> loadPowerTools(String playerName) {
+        Map<ItemKey, PowerTool> playerPowerTools = getPowerTools(playerName, false);
+        Map<ItemKey, PowerTool> result = new HashMap<ItemKey, PowerTool>();
+        if (playerPowerTools != null)
+            PowerToolCodec.copyPowerTools(playerPowerTools, result);
+        return result;
+    }
+
+    private synchronized void savePowerTool(String playerName, ItemKey key, PowerTool powerTool) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = beginRecord(payload, OP_SAVE, playerName);
+            PowerToolCodec.writeKey(out, key);
+            PowerToolCodec.writePowerTool(out, powerTool);
+        }
+        catch (IOException e) {
+            throw new DaoException(e); // Shouldn't happen
+        }
+        append(payload);
+        getPowerTools(playerName, true).put(key, powerTool.copy());
+    }
+
+    private synchronized void removePowerTool(String playerName, ItemKey key) {
+        Map<ItemKey, PowerTool> playerPowerTools = getPowerTools(playerName, false);
+        if (playerPowerTools == null || !playerPowerTools.containsKey(key)) return;
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = beginRecord(payload, OP_REMOVE, playerName);
+            PowerToolCodec.writeKey(out, key);
+        }
+        catch (IOException e) {
+            throw new DaoException(e); // Shouldn't happen
+        }
+        append(payload);
+        playerPowerTools.remove(key);
+        if (playerPowerTools.isEmpty())
+            powerTools.remove(playerName);
+    }
+
+    // A single player's view of the journal
+    private class PlayerDao implements PowerToolDao {
+
+        private final String playerName;
+
+        private PlayerDao(String playerName) {
+            this.playerName = playerName;
+        }
+
+        @Override
+        public void savePowerTool(ItemKey key, PowerTool powerTool) {
+            JournalPowerToolStore.this.savePowerTool(playerName, key, powerTool);
+        }
+
+        @Override
+        public Map<ItemKey, PowerTool> loadPowerTools(boolean global) {
+            return JournalPowerToolStore.this.loadPowerTools(playerName);
+        }
+
+        @Override
+        public void removePowerTool(ItemKey key) {
+            JournalPowerToolStore.this.removePowerTool(playerName, key);
+        }
+
+    }
+
+}
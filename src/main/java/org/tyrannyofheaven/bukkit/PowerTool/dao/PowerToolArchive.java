@@ -0,0 +1,145 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.tyrannyofheaven.bukkit.PowerTool.ItemKey;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+// A single flat file holding the power tools of any number of players, for
+// offline transfer between servers or storage backends. Both sides stream,
+// so only one player's power tools are ever held in memory.
+public final class PowerToolArchive {
+
+    private static final int MAGIC = 0x50546172; // "PTar"
+
+    private static final int VERSION = 1;
+
+    private PowerToolArchive() {
+        throw new AssertionError(); // Don't instantiate me!
+    }
+
+    // Writes to a temporary file, which replaces the real one when
+    // finished. An unfinished archive never overwrites anything.
+    public static class Writer implements Closeable {
+
+        private final File file;
+
+        private final File tempFile;
+
+        private final FileOutputStream fos;
+
+        private final DataOutputStream out;
+
+        private boolean closed;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            tempFile = DaoUtils.getTempFile(file);
+            fos = new FileOutputStream(tempFile);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        public void write(String playerName, Map<ItemKey, PowerTool> powerTools) throws IOException {
+            out.writeBoolean(true);
+            out.writeUTF(playerName);
+            PowerToolCodec.writePowerTools(out, powerTools);
+        }
+
+        // Marks the end of the archive and moves it into place. An archive
+        // that wasn't finished is considered truncated.
+        public void finish() throws IOException {
+            out.writeBoolean(false);
+            out.flush();
+            fos.getFD().sync();
+            closed = true;
+            out.close();
+            DaoUtils.replaceFile(tempFile, file);
+        }
+
+        // Discards the archive if it wasn't finished
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                out.close();
+            }
+            finally {
+                tempFile.delete();
+            }
+        }
+
+    }
+
+    public static class Reader implements Closeable {
+
+        private final PowerToolSettings settings;
+
+        private final DataInputStream in;
+
+        private String playerName;
+
+        private Map<ItemKey, PowerTool> powerTools;
+
+        public Reader(File file, PowerToolSettings settings) throws IOException {
+            this.settings = settings;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("Not a power tool archive: " + file);
+                int version = in.readUnsignedByte();
+                if (version > VERSION)
+                    throw new IOException("Unsupported archive version " + version);
+            }
+            catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        // Advances to the next player. Returns false at the end of the archive.
+        public boolean next() throws IOException {
+            if (!in.readBoolean()) {
+                playerName = null;
+                powerTools = null;
+                return false;
+            }
+            playerName = in.readUTF();
+            powerTools = PowerToolCodec.readPowerTools(in, settings);
+            return true;
+        }
+
+        public String getPlayerName() {
+            return playerName;
+        }
+
+        public Map<ItemKey, PowerTool> getPowerTools() {
+            return powerTools;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
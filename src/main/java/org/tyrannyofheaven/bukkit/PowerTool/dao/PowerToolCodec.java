@@ -0,0 +1,121 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.tyrannyofheaven.bukkit.PowerTool.ItemKey;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolAction;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+// Binary encoding of ItemKeys and (player) PowerTools.
+final class PowerToolCodec {
+
+    private static final int MAGIC = 0x50546c73; // "PTls"
+
+    private static final int VERSION = 2;
+
+    private PowerToolCodec() {
+        throw new AssertionError(); // Don't instantiate me!
+    }
+
+    static void writeKey(DataOutput out, ItemKey key) throws IOException {
+        out.writeInt(key.getItemId());
+        out.writeByte(key.hasData() ? key.getData() : 0);
+        out.writeBoolean(key.getDisplayName() != null);
+        if (key.getDisplayName() != null)
+            out.writeUTF(key.getDisplayName());
+    }
+
+    static ItemKey readKey(DataInput in, boolean useDisplayNames) throws IOException {
+        int itemId = in.readInt();
+        byte data = in.readByte();
+        String displayName = in.readBoolean() ? in.readUTF() : null;
+        return ItemKey.valueOf(itemId, data, useDisplayNames ? displayName : null);
+    }
+
+    // Writes the commands of a player power tool
+    static void writePowerTool(DataOutput out, PowerTool powerTool) throws IOException {
+        int count = 0;
+        for (PowerToolAction action : PowerToolAction.values()) {
+            if (powerTool.getCommand(action) != null)
+                count++;
+        }
+        out.writeByte(count);
+        for (PowerToolAction action : PowerToolAction.values()) {
+            PowerTool.Command command = powerTool.getCommand(action);
+            if (command != null) {
+                out.writeUTF(action.getDisplayName());
+                out.writeUTF(command.getCommand());
+            }
+        }
+    }
+
+    // Reads a player power tool. Returns null if it has no usable commands.
+    static PowerTool readPowerTool(DataInput in, PowerToolSettings settings) throws IOException {
+        return readPowerTool(in, settings, false);
+    }
+
+    // Version 1 snapshots also stored a token flags byte per command. They
+    // were never used, since commands are compiled when read anyway.
+    private static PowerTool readPowerTool(DataInput in, PowerToolSettings settings, boolean tokenFlags) throws IOException {
+        PowerTool pt = new PowerTool();
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            PowerToolAction action = DaoUtils.actionFromDisplayName(in.readUTF());
+            if (tokenFlags)
+                in.readUnsignedByte();
+            String command = in.readUTF();
+            // Always consume everything, even if unknown
+            if (action != null)
+                DaoUtils.setCommand(settings, pt, action, command);
+        }
+        return !pt.isEmpty() ? pt : null;
+    }
+
+    // Writes a complete set of player power tools in the versioned
+    // snapshot format.
+    static void writePowerTools(DataOutput out, Map<ItemKey, PowerTool> powerTools) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(powerTools.size());
+        for (Map.Entry<ItemKey, PowerTool> me : powerTools.entrySet()) {
+            writeKey(out, me.getKey());
+            writePowerTool(out, me.getValue());
+        }
+    }
+
+    // Reads a complete set of player power tools written by writePowerTools.
+    // Power tools without usable commands are silently dropped.
+    static Map<ItemKey, PowerTool> readPowerTools(DataInput in, PowerToolSettings settings) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a power tool snapshot");
+        int version = in.readUnsignedByte();
+        if (version > VERSION)
+            throw new IOException("Unsupported snapshot version " + version);
+        boolean tokenFlags = version < 2;
+        if (tokenFlags)
+            in.readInt(); // Tokens hash
+
+        int size = in.readInt();
+        Map<ItemKey, PowerTool> powerTools = new HashMap<ItemKey, PowerTool>();
+        for (int i = 0; i < size; i++) {
+            ItemKey key = readKey(in, settings.isUseDisplayNames());
+            PowerTool pt = readPowerTool(in, settings, tokenFlags);
+            if (pt != null)
+                powerTools.put(key, pt);
+        }
+        return powerTools;
+    }
+
+    static Map<ItemKey, PowerTool> copyPowerTools(Map<ItemKey, PowerTool> powerTools, Map<ItemKey, PowerTool> dest) {
+        for (Map.Entry<ItemKey, PowerTool> me : powerTools.entrySet()) {
+            dest.put(me.getKey(), me.getValue().copy());
+        }
+        return dest;
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import java.util.Set;
+
+// Storage for per-player power tools.
+public interface PowerToolStore {
+
+    // Returns a DAO for the given player's power tools. The returned DAO
+    // should be treated as the player's only view of the store (callers may
+    // cache it).
+    public PowerToolDao getPlayerDao(String playerName);
+
+    public boolean hasPowerTools(String playerName);
+
+    // Returns the names of all players that (may) have power tools.
+    // Should be cheap enough to call once at startup.
+    public Set<String> getPlayerNames();
+
+    public void clearPowerTools(String playerName);
+
+    public void close();
+
+}
@@ -0,0 +1,275 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.PowerTool.ItemKey;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolAction;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolPlugin;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+// Stores all player power tools in a single embedded SQLite database.
+// The SQLite JDBC driver ships with CraftBukkit, so there's nothing extra
+// to install.
+public class SqlitePowerToolStore implements PowerToolStore {
+
+    private static final String DRIVER_CLASS = "org.sqlite.JDBC";
+
+    private static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS powertools (" +
+            "player VARCHAR(16) NOT NULL, " +
+            "item_id INTEGER NOT NULL, " +
+            "data INTEGER NOT NULL, " +
+            "display_name VARCHAR(255) NOT NULL, " + // empty string if none
+            "action VARCHAR(16) NOT NULL, " +
+            "command TEXT NOT NULL, " +
+            "PRIMARY KEY (player, item_id, data, display_name, action))";
+
+    private static final String SELECT_SQL = "SELECT item_id, data, display_name, action, command FROM powertools WHERE player = ?";
+
+    private static final String PLAYERS_SQL = "SELECT DISTINCT player FROM powertools";
+
+    private static final String EXISTS_SQL = "SELECT 1 FROM powertools WHERE player = ? LIMIT 1";
+
+    private static final String INSERT_SQL = "INSERT INTO powertools (player, item_id, data, display_name, action, command) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String DELETE_SQL = "DELETE FROM powertools WHERE player = ? AND item_id = ? AND data = ? AND display_name = ?";
+
+    private static final String DELETE_ALL_SQL = "DELETE FROM powertools WHERE player = ?";
+
+
+    private final PowerToolPlugin plugin;
+
+    private final PowerToolSettings settings;
+
+    private final boolean useDisplayNames;
+
+    private final Connection connection;
+
+    private final PreparedStatement selectStatement;
+
+    private final PreparedStatement existsStatement;
+
+    private final PreparedStatement insertStatement;
+
+    private final PreparedStatement deleteStatement;
+
+    private final PreparedStatement deleteAllStatement;
+
+    public SqlitePowerToolStore(PowerToolPlugin plugin, File file, PowerToolSettings settings) {
+        this.plugin = plugin;
+        this.settings = settings;
+        this.useDisplayNames = settings.isUseDisplayNames();
+
+        try {
+            Class.forName(DRIVER_CLASS);
+        }
+        catch (ClassNotFoundException e) {
+            throw new DaoException("SQLite driver not available", e);
+        }
+
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.executeUpdate(CREATE_TABLE_SQL);
+            }
+            finally {
+                stmt.close();
+            }
+
+            selectStatement = connection.prepareStatement(SELECT_SQL);
+            existsStatement = connection.prepareStatement(EXISTS_SQL);
+            insertStatement = connection.prepareStatement(INSERT_SQL);
+            deleteStatement = connection.prepareStatement(DELETE_SQL);
+            deleteAllStatement = connection.prepareStatement(DELETE_ALL_SQL);
+        }
+        catch (SQLException e) {
+            throw new DaoException("Unable to open database " + file, e);
+        }
+    }
+
+    @Override
+    public PowerToolDao getPlayerDao(String playerName) {
+        return new PlayerDao(playerName);
+    }
+
+    @Override
+    public synchronized boolean hasPowerTools(String playerName) {
+        try {
+            existsStatement.setString(1, playerName);
+            ResultSet rs = existsStatement.executeQuery();
+            try {
+                return rs.next();
+            }
+            finally {
+                rs.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public synchronized Set<String> getPlayerNames() {
+        Set<String> result = new HashSet<String>();
+        try {
+            Statement stmt = connection.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery(PLAYERS_SQL);
+                while (rs.next())
+                    result.add(rs.getString(1));
+            }
+            finally {
+                stmt.close(); // also closes ResultSet
+            }
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void clearPowerTools(String playerName) {
+        try {
+            deleteAllStatement.setString(1, playerName);
+            deleteAllStatement.executeUpdate();
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            connection.close(); // also closes statements
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private synchronized Map<ItemKey, PowerTool> loadPowerTools(String playerName) {
+        Map<ItemKey, PowerTool> powerTools = new HashMap<ItemKey, PowerTool>();
+        try {
+            selectStatement.setString(1, playerName);
+            ResultSet rs = selectStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    String displayName = rs.getString(3);
+                    if (!useDisplayNames || displayName.length() == 0)
+                        displayName = null;
+                    ItemKey key = ItemKey.valueOf(rs.getInt(1), (byte)rs.getInt(2), displayName);
+
+                    PowerToolAction action = DaoUtils.actionFromDisplayName(rs.getString(4));
+                    if (action == null) continue; // Shouldn't happen
+
+                    PowerTool pt = powerTools.get(key);
+                    if (pt == null) {
+                        pt = new PowerTool();
+                        powerTools.put(key, pt);
+                    }
+
+                    DaoUtils.setCommand(settings, pt, action, rs.getString(5));
+                }
+            }
+            finally {
+                rs.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+        return powerTools;
+    }
+
+    private void bindKey(PreparedStatement stmt, String playerName, ItemKey key) throws SQLException {
+        stmt.setString(1, playerName);
+        stmt.setInt(2, key.getItemId());
+        stmt.setInt(3, key.hasData() ? key.getData() : 0);
+        stmt.setString(4, key.getDisplayName() == null ? "" : key.getDisplayName());
+    }
+
+    private synchronized void savePowerTool(String playerName, ItemKey key, PowerTool powerTool) {
+        try {
+            connection.setAutoCommit(false);
+            try {
+                bindKey(deleteStatement, playerName, key);
+                deleteStatement.executeUpdate();
+
+                for (PowerToolAction action : PowerToolAction.values()) {
+                    PowerTool.Command command = powerTool.getCommand(action);
+                    if (command != null) {
+                        bindKey(insertStatement, playerName, key);
+                        insertStatement.setString(5, action.getDisplayName());
+                        insertStatement.setString(6, command.getCommand());
+                        insertStatement.addBatch();
+                    }
+                }
+                insertStatement.executeBatch();
+
+                connection.commit();
+            }
+            catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+            finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private synchronized void removePowerTool(String playerName, ItemKey key) {
+        try {
+            bindKey(deleteStatement, playerName, key);
+            deleteStatement.executeUpdate();
+        }
+        catch (SQLException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    // A single player's view of the database
+    private class PlayerDao implements PowerToolDao {
+
+        private final String playerName;
+
+        private PlayerDao(String playerName) {
+            this.playerName = playerName;
+        }
+
+        @Override
+        public void savePowerTool(ItemKey key, PowerTool powerTool) {
+            SqlitePowerToolStore.this.savePowerTool(playerName, key, powerTool);
+        }
+
+        @Override
+        public Map<ItemKey, PowerTool> loadPowerTools(boolean global) {
+            return SqlitePowerToolStore.this.loadPowerTools(playerName);
+        }
+
+        @Override
+        public void removePowerTool(ItemKey key) {
+            SqlitePowerToolStore.this.removePowerTool(playerName, key);
+        }
+
+    }
+
+}
@@ -15,6 +15,7 @@ import org.tyrannyofheaven.bukkit.PowerTool.ItemKey;
 import org.tyrannyofheaven.bukkit.PowerTool.PowerTool;
 import org.tyrannyofheaven.bukkit.PowerTool.PowerToolAction;
 import org.tyrannyofheaven.bukkit.PowerTool.PowerToolPlugin;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
 import org.tyrannyofheaven.bukkit.util.ToHFileUtils;
 import org.tyrannyofheaven.bukkit.util.ToHStringUtils;
 
@@ -28,53 +29,81 @@ public class YamlPowerToolDao implements PowerToolDao {
 
     private static final String UNKNOWN_MATERIAL_MSG = "Unknown material '%s'; power tool ignored";
 
-    private static final String BAD_TOKENS_MSG = "Power tool '%s' uses both player and coordinate tokens; ignored";
 
     private final PowerToolPlugin plugin;
 
     private final File file;
 
+    private final PowerToolSettings settings;
+
     private final boolean useDisplayNames;
 
     private FileConfiguration config;
+
+    // Maps each ItemKey to the actual key used in the config. Built on load
+    // or on first write, and kept up-to-date on every write.
+    private Map<ItemKey, String> keyIndex;
     
-    public YamlPowerToolDao(PowerToolPlugin plugin, File file, boolean useDisplayNames) {
+    public YamlPowerToolDao(PowerToolPlugin plugin, File file, PowerToolSettings settings) {
         this.plugin = plugin;
         this.file = file;
         config = YamlConfiguration.loadConfiguration(file);
-        this.useDisplayNames = useDisplayNames;
+        this.settings = settings;
+        this.useDisplayNames = settings.isUseDisplayNames();
     }
     
-    public YamlPowerToolDao(PowerToolPlugin plugin, File file, FileConfiguration config, boolean useDisplayNames) {
+    public YamlPowerToolDao(PowerToolPlugin plugin, File file, FileConfiguration config, PowerToolSettings settings) {
         this.plugin = plugin;
         this.file = file;
         this.config = config;
-        this.useDisplayNames = useDisplayNames;
+        this.settings = settings;
+        this.useDisplayNames = settings.isUseDisplayNames();
     }
 
-    public void setConfig(FileConfiguration config) {
+    public synchronized void setConfig(FileConfiguration config) {
         this.config = config;
+        keyIndex = null;
     }
 
     private String getMaterialPath(ItemKey key) {
         return String.format("%s.%s", POWERTOOLS_SECTION_NAME, key);
     }
 
+    // Returns the ItemKey -> config key index, building it if needed.
+    // The keys in the config can have many forms, so they have to be parsed
+    // at least once.
+    private Map<ItemKey, String> getKeyIndex() {
+        if (keyIndex == null) {
+            keyIndex = new HashMap<ItemKey, String>();
+            ConfigurationSection section = config.getConfigurationSection(POWERTOOLS_SECTION_NAME);
+            if (section != null) {
+                for (Map.Entry<String, Object> me : section.getValues(false).entrySet()) {
+                    if (!(me.getValue() instanceof ConfigurationSection)) {
+                        warn(plugin, NOT_MAP_NODE_MSG, me.getKey());
+                        continue;
+                    }
+
+                    ItemKey matchedKey = ItemKey.fromString(me.getKey(), useDisplayNames);
+                    if (matchedKey != null) {
+                        // First one wins
+                        if (!keyIndex.containsKey(matchedKey))
+                            keyIndex.put(matchedKey, me.getKey());
+                    }
+                    else
+                        warn(plugin, UNKNOWN_MATERIAL_MSG, me.getKey());
+                }
+            }
+        }
+        return keyIndex;
+    }
+
     private PowerTool loadPowerTool(ConfigurationSection node, String materialName) {
         if (node != null) {
             PowerTool pt = new PowerTool();
             for (PowerToolAction action : PowerToolAction.values()) {
                 String command = node.getString(action.getDisplayName());
-                if (ToHStringUtils.hasText(command)) {
-                    boolean hasPlayerToken = command.contains(plugin.getPlayerToken());
-                    boolean hasAirToken = command.contains(plugin.getYAirToken());
-                    boolean hasLocationToken = command.contains(plugin.getXToken()) || command.contains(plugin.getYToken()) || command.contains(plugin.getZToken()) || hasAirToken;
-                    if (hasPlayerToken && hasLocationToken) {
-                        warn(plugin, BAD_TOKENS_MSG, materialName);
-                        return null;
-                    }
-                    pt.setCommand(action, command, hasPlayerToken, hasLocationToken, hasAirToken);
-                }
+                if (ToHStringUtils.hasText(command))
+                    DaoUtils.setCommand(settings, pt, action, command);
             }
             return pt;
         }
@@ -82,8 +111,9 @@ public class YamlPowerToolDao implements PowerToolDao {
     }
 
     @Override
-    public Map<ItemKey, PowerTool> loadPowerTools(boolean global) {
+    public synchronized Map<ItemKey, PowerTool> loadPowerTools(boolean global) {
         Map<ItemKey, PowerTool> powerTools = new HashMap<ItemKey, PowerTool>();
+        Map<ItemKey, String> index = new HashMap<ItemKey, String>();
         ConfigurationSection section = config.getConfigurationSection(POWERTOOLS_SECTION_NAME);
         if (section != null) {
             Map<String, Object> nodes = section.getValues(false);
@@ -100,6 +130,9 @@ public class YamlPowerToolDao implements PowerToolDao {
 
                 ItemKey matchedKey = ItemKey.fromString(materialName, useDisplayNames);
                 if (matchedKey != null) {
+                    if (!index.containsKey(matchedKey))
+                        index.put(matchedKey, materialName);
+
                     PowerTool pt = loadPowerTool(ptSection, materialName);
                     if (pt != null) {
                         // If global, read/set additional flags
@@ -116,6 +149,8 @@ public class YamlPowerToolDao implements PowerToolDao {
                     warn(plugin, UNKNOWN_MATERIAL_MSG, materialName);
             }
         }
+        // Might as well remember the index since we've already parsed everything
+        keyIndex = index;
         return powerTools;
     }
 
@@ -153,60 +188,23 @@ public class YamlPowerToolDao implements PowerToolDao {
     }
 
     @Override
-    public void removePowerTool(ItemKey key) {
-        ConfigurationSection section = config.getConfigurationSection(POWERTOOLS_SECTION_NAME);
-        if (section != null) {
-            Map<String, Object> nodes = section.getValues(false);
-
-            // Have to iterate since the keys can have many forms...
-            for (Map.Entry<String, Object> me : nodes.entrySet()) {
-                if (!(me.getValue() instanceof ConfigurationSection)) {
-                    warn(plugin, NOT_MAP_NODE_MSG, me.getKey());
-                    continue;
-                }
-
-                ItemKey matchedKey = ItemKey.fromString(me.getKey(), useDisplayNames);
-                if (matchedKey != null) {
-                    if (matchedKey.equals(key)) {
-                        // TODO This can probably be done better...
-                        config.set(String.format("%s.%s", POWERTOOLS_SECTION_NAME, me.getKey()), null); // FIXME added a few commits after CB1317
-                        ToHFileUtils.saveConfig(plugin, config, file.getParentFile(), file.getName());
-                        break;
-                    }
-                }
-                else
-                    warn(plugin, UNKNOWN_MATERIAL_MSG, me.getKey());
-            }
+    public synchronized void removePowerTool(ItemKey key) {
+        String materialName = getKeyIndex().remove(key);
+        if (materialName != null) {
+            config.set(String.format("%s.%s", POWERTOOLS_SECTION_NAME, materialName), null); // FIXME added a few commits after CB1317
+            ToHFileUtils.saveConfig(plugin, config, file.getParentFile(), file.getName());
         }
     }
 
     @Override
-    public void savePowerTool(ItemKey key, PowerTool powerTool) {
-        ConfigurationSection section = config.getConfigurationSection(POWERTOOLS_SECTION_NAME);
-        if (section == null)
-            section = config.createSection(POWERTOOLS_SECTION_NAME);
-
-        Map<String, Object> nodes = section.getValues(false);
+    public synchronized void savePowerTool(ItemKey key, PowerTool powerTool) {
+        Map<ItemKey, String> index = getKeyIndex();
 
-        // Have to iterate since the keys can have many forms... (TODO screaming for a refactoring)
-        for (Map.Entry<String, Object> me : nodes.entrySet()) {
-            if (!(me.getValue() instanceof ConfigurationSection)) {
-                warn(plugin, NOT_MAP_NODE_MSG, me.getKey());
-                continue;
-            }
+        // Remove the existing node first.
+        String materialName = index.get(key);
+        if (materialName != null)
+            config.set(String.format("%s.%s", POWERTOOLS_SECTION_NAME, materialName), null); // FIXME
 
-            ItemKey matchedKey = ItemKey.fromString(me.getKey(), useDisplayNames);
-            if (matchedKey != null) {
-                if (matchedKey.equals(key)) {
-                    // Remove this node first.
-                    config.set(String.format("%s.%s", POWERTOOLS_SECTION_NAME, me.getKey()), null); // FIXME
-                    break;
-                }
-            }
-            else
-                warn(plugin, UNKNOWN_MATERIAL_MSG, me.getKey());
-        }
-        
         // Do the actual save.
         String materialPath = getMaterialPath(key);
         for (PowerToolAction action : PowerToolAction.values()) {
@@ -215,6 +213,7 @@ public class YamlPowerToolDao implements PowerToolDao {
                 config.set(String.format("%s.%s", materialPath, action.getDisplayName()), command.getCommand());
             }
         }
+        index.put(key, key.toString());
 
         // Save
         ToHFileUtils.saveConfig(plugin, config, file.getParentFile(), file.getName());
@@ -0,0 +1,72 @@
+package org.tyrannyofheaven.bukkit.PowerTool.dao;
+
+import static org.tyrannyofheaven.bukkit.util.ToHLoggingUtils.error;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolPlugin;
+import org.tyrannyofheaven.bukkit.PowerTool.PowerToolSettings;
+
+// The original one-YAML-file-per-player store.
+public class YamlPowerToolStore implements PowerToolStore {
+
+    private final PowerToolPlugin plugin;
+
+    private final File directory;
+
+    private final PowerToolSettings settings;
+
+    public YamlPowerToolStore(PowerToolPlugin plugin, File directory, PowerToolSettings settings) {
+        this.plugin = plugin;
+        this.directory = directory;
+        this.settings = settings;
+    }
+
+    private File getPlayerConfigFile(String playerName) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            error(plugin, "Unable to create player configuration directory: %s", directory);
+            return null;
+        }
+
+        return new File(directory, playerName + ".yml");
+    }
+
+    @Override
+    public PowerToolDao getPlayerDao(String playerName) {
+        File playerConfigFile = getPlayerConfigFile(playerName);
+        if (playerConfigFile == null)
+            throw new DaoException("Unable to create player configuration directory: " + directory, null);
+
+        return new YamlPowerToolDao(plugin, playerConfigFile, settings);
+    }
+
+    @Override
+    public boolean hasPowerTools(String playerName) {
+        File playerConfigFile = getPlayerConfigFile(playerName);
+        return playerConfigFile != null && playerConfigFile.exists();
+    }
+
+    @Override
+    public Set<String> getPlayerNames() {
+        return DaoUtils.listPlayerNames(directory, ".yml", new HashSet<String>());
+    }
+
+    @Override
+    public void clearPowerTools(String playerName) {
+        File playerConfigFile = getPlayerConfigFile(playerName);
+        if (playerConfigFile == null) return;
+
+        // Just be lazy and delete
+        if (playerConfigFile.exists() && !playerConfigFile.delete()) {
+            error(plugin, "Unable to delete player configuration file: %s", playerConfigFile);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to do
+    }
+
+}
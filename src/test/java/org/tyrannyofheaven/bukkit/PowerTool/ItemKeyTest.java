@@ -0,0 +1,154 @@
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.bukkit.Material;
+import org.junit.Test;
+
+public class ItemKeyTest {
+
+    private static final int[] ITEM_IDS = {
+        Material.STONE.getId(),
+        Material.STICK.getId(),
+        Material.DIAMOND_SWORD.getId(),
+        Material.WOOL.getId(),
+        Material.LOG.getId(),
+        Material.INK_SACK.getId(),
+        Material.COAL.getId(),
+    };
+
+    private static final String[] DISPLAY_NAMES = { null, "Wand", "wand" };
+
+    @Test
+    public void testDataIrrelevantKeysEqual() {
+        int stickId = Material.STICK.getId();
+        assertFalse(ItemKey.hasData(stickId));
+
+        ItemKey a = ItemKey.valueOf(stickId, (byte)3, null);
+        ItemKey b = ItemKey.valueOf(stickId, (byte)7, null);
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(0, a.compareTo(b));
+        assertEquals(0, a.getData());
+
+        ItemKey c = ItemKey.valueOf(stickId, (byte)3, "Wand");
+        ItemKey d = ItemKey.valueOf(stickId, (byte)7, "Wand");
+        assertEquals(c, d);
+        assertEquals(c.hashCode(), d.hashCode());
+        assertEquals(0, c.compareTo(d));
+    }
+
+    @Test
+    public void testDataRelevantKeysDiffer() {
+        int woolId = Material.WOOL.getId();
+        assertTrue(ItemKey.hasData(woolId));
+
+        ItemKey a = ItemKey.valueOf(woolId, (byte)1, null);
+        ItemKey b = ItemKey.valueOf(woolId, (byte)2, null);
+        assertFalse(a.equals(b));
+        assertTrue(a.compareTo(b) < 0);
+        assertEquals(a, ItemKey.valueOf(woolId, (byte)1, null));
+    }
+
+    @Test
+    public void testDisplayName() {
+        int stickId = Material.STICK.getId();
+        ItemKey plain = ItemKey.valueOf(stickId, (byte)0, null);
+        ItemKey named = ItemKey.valueOf(stickId, (byte)0, "Wand");
+        assertFalse(plain.equals(named));
+        assertFalse(named.equals(plain));
+        assertFalse(named.equals(ItemKey.valueOf(stickId, (byte)0, "wand")));
+        assertEquals(named, ItemKey.valueOf(stickId, (byte)0, "Wand"));
+    }
+
+    // Exhaustively compare against the original equals/hashCode, which
+    // ignored data for data-irrelevant items rather than normalizing it
+    @Test
+    public void testMatchesLegacyEquality() {
+        for (int id1 : ITEM_IDS) {
+            for (int data1 = -1; data1 < 17; data1++) {
+                for (String name1 : DISPLAY_NAMES) {
+                    ItemKey key1 = ItemKey.valueOf(id1, (byte)data1, name1);
+                    assertEquals(legacyHashCode(id1, (byte)data1, name1), key1.hashCode());
+
+                    for (int id2 : ITEM_IDS) {
+                        for (int data2 = -1; data2 < 17; data2++) {
+                            for (String name2 : DISPLAY_NAMES) {
+                                ItemKey key2 = ItemKey.valueOf(id2, (byte)data2, name2);
+                                boolean expected = legacyEquals(id1, (byte)data1, name1, id2, (byte)data2, name2);
+                                assertEquals(expected, key1.equals(key2));
+                                assertEquals(expected, key1.compareTo(key2) == 0);
+                                if (expected)
+                                    assertEquals(key1.hashCode(), key2.hashCode());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        int stickId = Material.STICK.getId();
+        int woolId = Material.WOOL.getId();
+
+        // Shared keys resolve back to the flyweight instance
+        ItemKey stick = ItemKey.valueOf(stickId, (byte)0, null);
+        assertSame(stick, roundTrip(stick));
+        ItemKey wool = ItemKey.valueOf(woolId, (byte)5, null);
+        assertSame(wool, roundTrip(wool));
+
+        // Named keys are not shared, but must still compare equal
+        ItemKey named = ItemKey.valueOf(stickId, (byte)0, "Wand");
+        ItemKey copy = roundTrip(named);
+        assertEquals(named, copy);
+        assertEquals(named.hashCode(), copy.hashCode());
+        assertEquals("Wand", copy.getDisplayName());
+
+        // Out-of-range data is not shared either
+        ItemKey odd = ItemKey.valueOf(woolId, (byte)-1, null);
+        copy = roundTrip(odd);
+        assertEquals(odd, copy);
+        assertEquals(odd.hashCode(), copy.hashCode());
+    }
+
+    private static boolean legacyEquals(int id1, byte data1, String name1, int id2, byte data2, String name2) {
+        return id1 == id2 &&
+                (ItemKey.hasData(id1) ? data1 == data2 : true) &&
+                (name1 == null ? name2 == null : name1.equals(name2));
+    }
+
+    private static int legacyHashCode(int id, byte data, String name) {
+        int result = 17;
+        result = 37 * result + id;
+        result = 37 * result + (ItemKey.hasData(id) ? (int)data : 0);
+        result = 37 * result + (name == null ? 0 : name.hashCode());
+        return result;
+    }
+
+    private static ItemKey roundTrip(ItemKey key) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(key);
+        oos.close();
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        try {
+            return (ItemKey)ois.readObject();
+        }
+        finally {
+            ois.close();
+        }
+    }
+
+}
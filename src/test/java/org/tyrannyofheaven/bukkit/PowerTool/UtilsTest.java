@@ -0,0 +1,182 @@
+package org.tyrannyofheaven.bukkit.PowerTool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.bukkit.util.Vector;
+import org.junit.Test;
+
+public class UtilsTest {
+
+    private static final int ITERATIONS = 20000;
+
+    private static final double EPSILON = 1e-9;
+
+    private final Random random = new Random(0x506f776572546f6fL);
+
+    @Test
+    public void testRandomRays() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            Vector min = randomMin();
+            Vector max = randomMax(min);
+            compare(min, max, randomPoint(-20.0, 20.0), randomDirection());
+        }
+    }
+
+    @Test
+    public void testRaysAimedIntoBox() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            Vector min = randomMin();
+            Vector max = randomMax(min);
+            Vector origin = randomPoint(-20.0, 20.0);
+            // Aim at a point strictly inside, so both must hit (unless the
+            // origin is already inside)
+            Vector target = pointInside(min, max, 0.01);
+            Vector direction = target.clone().subtract(origin);
+            assertTrue(compare(min, max, origin, direction));
+        }
+    }
+
+    @Test
+    public void testAxisParallelRays() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            Vector min = randomMin();
+            Vector max = randomMax(min);
+            Vector origin;
+            // Half the time, put the origin within the box's slabs so the
+            // zero-direction axes don't reject it outright
+            if (random.nextBoolean())
+                origin = pointInside(min, max, 0.0);
+            else
+                origin = randomPoint(-20.0, 20.0);
+            // Push one or two coordinates out along the axes we'll travel
+            Vector direction = randomDirection();
+            int zeroMask = 1 + random.nextInt(6); // 1..6: never all three
+            if ((zeroMask & 1) != 0) direction.setX(0.0);
+            else origin.setX(origin.getX() + (random.nextDouble() - 0.5) * 40.0);
+            if ((zeroMask & 2) != 0) direction.setY(0.0);
+            else origin.setY(origin.getY() + (random.nextDouble() - 0.5) * 40.0);
+            if ((zeroMask & 4) != 0) direction.setZ(0.0);
+            else origin.setZ(origin.getZ() + (random.nextDouble() - 0.5) * 40.0);
+            compare(min, max, origin, direction);
+        }
+    }
+
+    @Test
+    public void testOriginInside() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            Vector min = randomMin();
+            Vector max = randomMax(min);
+            Vector origin = pointInside(min, max, 0.0);
+            Vector direction = randomDirection();
+            assertTrue(compare(min, max, origin, direction));
+            assertEquals(0.0, Utils.rayBoxIntersect(origin.getX(), origin.getY(), origin.getZ(),
+                    direction.getX(), direction.getY(), direction.getZ(),
+                    min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ()), 0.0);
+        }
+    }
+
+    @Test
+    public void testGrazingRays() {
+        for (int i = 0; i < ITERATIONS; i++) {
+            Vector min = randomMin();
+            Vector max = randomMax(min);
+            // Start exactly in the plane of one face and travel parallel to
+            // it. Boxes are closed, so this hits iff the ray crosses the face.
+            Vector origin = randomPoint(-20.0, 20.0);
+            Vector direction = randomDirection();
+            int axis = random.nextInt(3);
+            boolean high = random.nextBoolean();
+            if (axis == 0) {
+                origin.setX(high ? max.getX() : min.getX());
+                direction.setX(0.0);
+            }
+            else if (axis == 1) {
+                origin.setY(high ? max.getY() : min.getY());
+                direction.setY(0.0);
+            }
+            else {
+                origin.setZ(high ? max.getZ() : min.getZ());
+                direction.setZ(0.0);
+            }
+            compare(min, max, origin, direction);
+
+            // And travel along the face towards a point inside it
+            Vector target = pointInside(min, max, 0.01);
+            if (axis == 0) target.setX(origin.getX());
+            else if (axis == 1) target.setY(origin.getY());
+            else target.setZ(origin.getZ());
+            direction = target.subtract(origin);
+            assertTrue(compare(min, max, origin, direction));
+        }
+    }
+
+    @Test
+    public void testSimpleCases() {
+        // Straight down onto a unit block from above
+        assertEquals(1.0, Utils.rayBoxIntersect(0.5, 2.0, 0.5, 0.0, -1.0, 0.0,
+                0.0, 0.0, 0.0, 1.0, 1.0, 1.0), EPSILON);
+        // Pointing away
+        assertEquals(-1.0, Utils.rayBoxIntersect(0.5, 2.0, 0.5, 0.0, 1.0, 0.0,
+                0.0, 0.0, 0.0, 1.0, 1.0, 1.0), 0.0);
+        // Parallel, outside the slab
+        assertEquals(-1.0, Utils.rayBoxIntersect(1.5, 0.5, -5.0, 0.0, 0.0, 1.0,
+                0.0, 0.0, 0.0, 1.0, 1.0, 1.0), 0.0);
+        // Parallel, along the face
+        assertEquals(5.0, Utils.rayBoxIntersect(1.0, 0.5, -5.0, 0.0, 0.0, 1.0,
+                0.0, 0.0, 0.0, 1.0, 1.0, 1.0), EPSILON);
+    }
+
+    // Runs both implementations and checks they agree. Returns whether they hit.
+    private boolean compare(Vector min, Vector max, Vector origin, Vector direction) {
+        Vector coord = new Vector();
+        boolean expected = Utils.hitBoundingBox(min, max, origin, direction, coord);
+        double t = Utils.rayBoxIntersect(origin.getX(), origin.getY(), origin.getZ(),
+                direction.getX(), direction.getY(), direction.getZ(),
+                min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ());
+
+        String message = "min=" + min + " max=" + max + " origin=" + origin + " direction=" + direction;
+        assertEquals(message, expected, t >= 0.0);
+        if (expected) {
+            assertEquals(message, coord.getX(), origin.getX() + t * direction.getX(), EPSILON);
+            assertEquals(message, coord.getY(), origin.getY() + t * direction.getY(), EPSILON);
+            assertEquals(message, coord.getZ(), origin.getZ() + t * direction.getZ(), EPSILON);
+        }
+        return expected;
+    }
+
+    private Vector randomMin() {
+        return randomPoint(-10.0, 10.0);
+    }
+
+    private Vector randomMax(Vector min) {
+        return new Vector(min.getX() + 0.1 + random.nextDouble() * 5.0,
+                min.getY() + 0.1 + random.nextDouble() * 5.0,
+                min.getZ() + 0.1 + random.nextDouble() * 5.0);
+    }
+
+    private Vector randomPoint(double low, double high) {
+        return new Vector(low + random.nextDouble() * (high - low),
+                low + random.nextDouble() * (high - low),
+                low + random.nextDouble() * (high - low));
+    }
+
+    // Random point within the box, at least inset from each face
+    private Vector pointInside(Vector min, Vector max, double inset) {
+        return new Vector(min.getX() + inset + random.nextDouble() * (max.getX() - min.getX() - 2.0 * inset),
+                min.getY() + inset + random.nextDouble() * (max.getY() - min.getY() - 2.0 * inset),
+                min.getZ() + inset + random.nextDouble() * (max.getZ() - min.getZ() - 2.0 * inset));
+    }
+
+    private Vector randomDirection() {
+        Vector direction;
+        do {
+            direction = randomPoint(-1.0, 1.0);
+        }
+        while (direction.lengthSquared() < 1e-6 || direction.lengthSquared() > 1.0);
+        return direction.normalize();
+    }
+
+}